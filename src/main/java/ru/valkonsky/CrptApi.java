@@ -2,113 +2,3217 @@ package ru.valkonsky;
 
 //TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
 // click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ProxySelector;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class CrptApi implements AutoCloseable {
 
     public enum Format { JSON, CSV, XML }
+    public enum LimiterType { SLIDING_WINDOW, GCRA, BUCKETED_WINDOW, SHARED_FILE }
+    public enum PriorityPolicy { STRICT, WEIGHTED }
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    public enum Priority {
+        URGENT(8), NORMAL(4), BULK(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * Доля разрешений очереди при {@link PriorityPolicy#WEIGHTED}.
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Content-Encoding тела запроса. Deflater'ы берутся из пула: создание нового и его нативный
+     * буфер заметно дороже reset(), а без end() нативная память держится до финализации.
+     */
+    public enum Compression {
+        NONE(null, false), GZIP("gzip", true), DEFLATE("deflate", false);
+
+        private final String contentEncoding;
+        private final boolean gzip;
+        private final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+        Compression(String contentEncoding, boolean gzip) {
+            this.contentEncoding = contentEncoding;
+            this.gzip = gzip;
+        }
+
+        private Deflater borrow() {
+            Deflater deflater = pool.poll();
+            // gzip пишет свой заголовок и CRC сам, а HTTP deflate — это zlib-обёртка
+            return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        }
+
+        private void release(Deflater deflater) {
+            deflater.reset();
+            if (!pool.offer(deflater)) deflater.end();
+        }
+
+        private byte[] compress(byte[] body) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+            DeflatingOutputStream deflating = new DeflatingOutputStream(out, this);
+            try {
+                deflating.write(body, 0, body.length);
+                deflating.finish();
+            } finally {
+                deflating.abort();
+            }
+            return out.toByteArray();
+        }
+    }
+
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
+    private final ObjectWriter documentWriter;
+    private final ObjectMapper headMapper;
+    // подкласс сериализует JSON сам: такой JSON не стримится, а serializeDocument(Object) вызывается
+    private final boolean customJsonSerializer;
+    private final boolean legacyJsonSerializer;
     private volatile URI baseUri;
-    private final SlidingWindowRateLimiter rateLimiter;
+    private final PrioritizedRateLimiter rateLimiter;
+    private final Function<String, PrioritizedRateLimiter> limiterFactory;
+    private volatile KeyedRateLimiters participantLimiters;
+    private volatile PermitCost permitCost = PermitCost.ONE;
+    private volatile int streamingThreshold = Integer.MAX_VALUE;
+    private volatile Compression compression = Compression.NONE;
+    private volatile int compressionThreshold;
+    private volatile int splitMaxProducts;
+    private volatile long splitMaxBodyBytes;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile RetryBudget retryBudget = new RetryBudget(0);
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile Hedging hedging;
+    private final PriorityLanes lanes;
+    private final NanoClock clock;
+    // одна ссылка на подписку, чтобы снять её с ManualNanoClock при закрытии
+    private final Runnable clockListener = this::wakeWaiters;
+    private final LimiterType limiterType;
+    private volatile List<RateLimitTier> tiers;
+    private final ReentrantLock configLock = new ReentrantLock();
+    private final ExecutorService virtualThreadExecutor;
+    private final Executor continuationExecutor;
+    private final Duration requestTimeout;
+    private volatile boolean closed;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Set<CompletableFuture<Void>> pendingPermits = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock closeLock = new ReentrantLock();
+    private final Condition drained = closeLock.newCondition();
 
     public static final URI DEFAULT_BASE_URI = URI.create("https://ismp.crpt.ru/api/v3/lk/documents/create");
+    public static final int DEFAULT_WINDOW_BUCKETS = 10;
+    public static final Duration DEFAULT_CLOSE_TIMEOUT = Duration.ofSeconds(30);
 
     public CrptApi(TimeUnit timeUnit, int requestLimit) {
         this(timeUnit, requestLimit, DEFAULT_BASE_URI);
     }
 
     public CrptApi(TimeUnit timeUnit, int requestLimit, URI baseUri) {
-        Objects.requireNonNull(timeUnit, "timeUnit");
+        this(timeUnit, requestLimit, baseUri, LimiterType.SLIDING_WINDOW);
+    }
+
+    public CrptApi(TimeUnit timeUnit, int requestLimit, URI baseUri, LimiterType limiterType) {
+        this(timeUnit, requestLimit, baseUri, limiterType, DEFAULT_WINDOW_BUCKETS);
+    }
+
+    /**
+     * @param windowBuckets число подокон для {@link LimiterType#BUCKETED_WINDOW}: чем больше,
+     *                      тем точнее окно и тем меньше простой после исчерпания лимита
+     */
+    public CrptApi(TimeUnit timeUnit, int requestLimit, URI baseUri, LimiterType limiterType, int windowBuckets) {
+        this(timeUnit, requestLimit, baseUri, limiterType, windowBuckets, false);
+    }
+
+    /**
+     * @param virtualThreads выполнять HttpClient и асинхронные отправки на виртуальных потоках.
+     *                       Ожидание разрешения лимитера и чтение ленивого источника товаров при
+     *                       делении документа идут под ReentrantLock/Condition, без synchronized,
+     *                       поэтому не закрепляют поток-носитель и на JDK 21–23.
+     */
+    public CrptApi(TimeUnit timeUnit, int requestLimit, URI baseUri, LimiterType limiterType, int windowBuckets,
+                   boolean virtualThreads) {
+        this(List.of(new RateLimitTier(timeUnit, requestLimit)), baseUri, limiterType, windowBuckets, virtualThreads, null,
+                NanoClock.SYSTEM);
+    }
+
+    /**
+     * Несколько уровней лимита (например, всплеск в секунду и квота в час), которые проверяются
+     * атомарно при каждом захвате разрешения. Используется лимитер {@link LimiterType#BUCKETED_WINDOW}.
+     */
+    public CrptApi(List<RateLimitTier> tiers, URI baseUri) {
+        this(tiers, baseUri, DEFAULT_WINDOW_BUCKETS);
+    }
+
+    public CrptApi(List<RateLimitTier> tiers, URI baseUri, int windowBuckets) {
+        this(tiers, baseUri, LimiterType.BUCKETED_WINDOW, windowBuckets, false, null, NanoClock.SYSTEM);
+    }
+
+    /**
+     * Лимитер с заданными часами: например, {@link ManualNanoClock} позволяет проверять лимиты
+     * детерминированно, сдвигая время вручную вместо ожидания.
+     */
+    public CrptApi(List<RateLimitTier> tiers, URI baseUri, LimiterType limiterType, NanoClock clock) {
+        this(tiers, baseUri, limiterType, DEFAULT_WINDOW_BUCKETS, false, null, clock);
+    }
+
+    /**
+     * Лимит, общий для всех процессов хоста: состояние лимитера хранится в файле, отображённом в память.
+     * Все процессы должны указывать один и тот же файл и одинаковые timeUnit/requestLimit.
+     */
+    public CrptApi(TimeUnit timeUnit, int requestLimit, URI baseUri, Path sharedStateFile) {
+        this(List.of(new RateLimitTier(timeUnit, requestLimit)), baseUri, LimiterType.SHARED_FILE,
+                DEFAULT_WINDOW_BUCKETS, false, Objects.requireNonNull(sharedStateFile, "sharedStateFile"), NanoClock.SYSTEM);
+    }
+
+    private CrptApi(List<RateLimitTier> tiers, URI baseUri, LimiterType limiterType, int windowBuckets,
+                    boolean virtualThreads, Path sharedStateFile, NanoClock clock) {
+        this(builder()
+                .rateLimits(Objects.requireNonNull(tiers, "tiers"))
+                .baseUri(baseUri)
+                .limiterType(limiterType)
+                .windowBuckets(windowBuckets)
+                .virtualThreads(virtualThreads)
+                .sharedStateFile(sharedStateFile)
+                .clock(clock));
+    }
+
+    private CrptApi(Builder b) {
+        List<RateLimitTier> tiers = b.tiers;
+        URI baseUri = b.baseUri;
+        LimiterType limiterType = b.limiterType != null ? b.limiterType
+                : tiers.size() > 1 ? LimiterType.BUCKETED_WINDOW : LimiterType.SLIDING_WINDOW;
+        int windowBuckets = b.windowBuckets;
+        Path sharedStateFile = b.sharedStateFile;
+        NanoClock clock = b.clock;
+        Objects.requireNonNull(clock, "clock");
         Objects.requireNonNull(baseUri, "baseUri");
-        if (requestLimit <= 0) throw new IllegalArgumentException("requestLimit must be > 0");
+        if (windowBuckets <= 0) throw new IllegalArgumentException("windowBuckets must be > 0");
+        if (limiterType == LimiterType.SHARED_FILE && sharedStateFile == null) {
+            throw new IllegalArgumentException("SHARED_FILE limiter requires sharedStateFile");
+        }
+        if (b.virtualThreads && b.executor != null) {
+            throw new IllegalArgumentException("virtualThreads and executor are mutually exclusive");
+        }
+        this.limiterType = limiterType;
+        this.tiers = sortedTiers(tiers, limiterType);
+        this.requestTimeout = b.requestTimeout;
 
-        this.httpClient = HttpClient.newHttpClient();
+        HttpClient.Builder http = HttpClient.newBuilder().version(b.version);
+        if (b.connectTimeout != null) http.connectTimeout(b.connectTimeout);
+        if (b.proxy != null) http.proxy(b.proxy);
+        if (b.virtualThreads) {
+            this.virtualThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            http.executor(virtualThreadExecutor);
+        } else {
+            this.virtualThreadExecutor = null;
+            if (b.executor != null) http.executor(b.executor);
+        }
+        this.httpClient = http.build();
+        // без своего executor'а у HttpClient — тот же, что у *Async по умолчанию: общий ForkJoinPool,
+        // а на одноядерной машине поток на задачу
+        Executor executor = httpClient.executor().orElseGet(() -> new CompletableFuture<Void>().defaultExecutor());
+        // остановленный executor не должен терять выданное разрешение: тогда выполняем на месте
+        this.continuationExecutor = task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
         this.objectMapper = new ObjectMapper();
+        // тип берётся у самого документа: writerFor(Document.class) терял бы поля подклассов
+        this.documentWriter = objectMapper.writer();
+        this.headMapper = headMapperOf(objectMapper);
+        this.legacyJsonSerializer = overrides(getClass(), "serializeDocument", Object.class);
+        this.customJsonSerializer = legacyJsonSerializer || overrides(getClass(), "serializeDocumentBytes", Document.class);
         this.baseUri = baseUri;
-        long windowMillis = timeUnit.toMillis(1);
-        this.rateLimiter = new SlidingWindowRateLimiter(requestLimit, windowMillis);
+        this.lanes = new PriorityLanes();
+        this.clock = clock;
+        this.circuitBreaker = new CircuitBreaker(null, clock);
+        this.limiterFactory = key -> newRateLimiter(limiterType, this.tiers, windowBuckets,
+                sharedStateFile == null || key == null ? sharedStateFile : participantStateFile(sharedStateFile, key),
+                lanes, clock);
+        this.rateLimiter = limiterFactory.apply(null);
+        if (clock instanceof ManualNanoClock) ((ManualNanoClock) clock).listeners.add(clockListener);
     }
 
-    public HttpResponse<String> createEntryDocument(Document doc, Format format, String signature)
-            throws IOException, InterruptedException {
-        Objects.requireNonNull(doc, "document");
-        Objects.requireNonNull(format, "format");
-        Objects.requireNonNull(signature, "signature");
+    public static Builder builder() {
+        return new Builder();
+    }
 
-        rateLimiter.acquire();
+    /**
+     * Настройка клиента, включая HttpClient. По умолчанию запросы идут по HTTP/2: одновременные
+     * отправки мультиплексируются в нескольких TCP-соединениях вместо соединения на запрос.
+     * Размер пула HTTP/1.1-соединений JDK задаётся только системным свойством
+     * {@code jdk.httpclient.connectionPoolSize}.
+     */
+    public static final class Builder {
+        private List<RateLimitTier> tiers;
+        private URI baseUri = DEFAULT_BASE_URI;
+        private LimiterType limiterType;
+        private int windowBuckets = DEFAULT_WINDOW_BUCKETS;
+        private boolean virtualThreads;
+        private Path sharedStateFile;
+        private NanoClock clock = NanoClock.SYSTEM;
+        private HttpClient.Version version = HttpClient.Version.HTTP_2;
+        private Executor executor;
+        private Duration connectTimeout;
+        private Duration requestTimeout;
+        private ProxySelector proxy;
 
-        String body;
-        String contentType;
-        switch (format) {
-            case JSON:
-                body = serializeDocument(doc);
-                contentType = "application/json";
+        private Builder() {
+        }
+
+        public Builder rateLimit(TimeUnit timeUnit, int requestLimit) {
+            return rateLimits(List.of(new RateLimitTier(timeUnit, requestLimit)));
+        }
+
+        public Builder rateLimits(List<RateLimitTier> tiers) {
+            this.tiers = List.copyOf(tiers);
+            return this;
+        }
+
+        public Builder baseUri(URI baseUri) {
+            this.baseUri = Objects.requireNonNull(baseUri, "baseUri");
+            return this;
+        }
+
+        /**
+         * По умолчанию {@link LimiterType#SLIDING_WINDOW}, а для нескольких уровней лимита
+         * {@link LimiterType#BUCKETED_WINDOW}.
+         */
+        public Builder limiterType(LimiterType limiterType) {
+            this.limiterType = Objects.requireNonNull(limiterType, "limiterType");
+            return this;
+        }
+
+        public Builder windowBuckets(int windowBuckets) {
+            this.windowBuckets = windowBuckets;
+            return this;
+        }
+
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public Builder sharedStateFile(Path sharedStateFile) {
+            this.sharedStateFile = sharedStateFile;
+            return this;
+        }
+
+        public Builder clock(NanoClock clock) {
+            this.clock = Objects.requireNonNull(clock, "clock");
+            return this;
+        }
+
+        public Builder version(HttpClient.Version version) {
+            this.version = Objects.requireNonNull(version, "version");
+            return this;
+        }
+
+        /**
+         * Executor HttpClient'а. Клиент его не останавливает: им владеет вызывающий код.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor, "executor");
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = requirePositive(connectTimeout, "connectTimeout");
+            return this;
+        }
+
+        /**
+         * Таймаут ответа на каждый запрос, без учёта ожидания разрешения лимитера.
+         */
+        public Builder requestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requirePositive(requestTimeout, "requestTimeout");
+            return this;
+        }
+
+        public Builder proxy(ProxySelector proxy) {
+            this.proxy = Objects.requireNonNull(proxy, "proxy");
+            return this;
+        }
+
+        public CrptApi build() {
+            if (tiers == null) throw new IllegalStateException("rate limit is not set");
+            return new CrptApi(this);
+        }
+
+        private static Duration requirePositive(Duration duration, String name) {
+            Objects.requireNonNull(duration, name);
+            if (duration.isNegative() || duration.isZero()) throw new IllegalArgumentException(name + " must be > 0");
+            return duration;
+        }
+    }
+
+    private static List<RateLimitTier> sortedTiers(List<RateLimitTier> tiers, LimiterType limiterType) {
+        if (tiers.isEmpty()) throw new IllegalArgumentException("at least one rate limit tier is required");
+        if (tiers.size() > 1 && limiterType != LimiterType.BUCKETED_WINDOW) {
+            throw new IllegalArgumentException("Multiple rate limit tiers require BUCKETED_WINDOW limiter");
+        }
+        List<RateLimitTier> sorted = new ArrayList<>(tiers);
+        sorted.sort(Comparator.comparingLong(t -> t.getTimeUnit().toNanos(1)));
+        return List.copyOf(sorted);
+    }
+
+    /**
+     * Меняет лимит на лету, не пересоздавая клиент: пул соединений HttpClient и история лимитеров
+     * сохраняются, ожидающие вызовы сразу пересчитывают ожидание по новому лимиту.
+     */
+    public void setRateLimit(TimeUnit timeUnit, int requestLimit) {
+        setRateLimits(List.of(new RateLimitTier(timeUnit, requestLimit)));
+    }
+
+    public void setRateLimits(List<RateLimitTier> tiers) {
+        Objects.requireNonNull(tiers, "tiers");
+        List<RateLimitTier> sorted = sortedTiers(tiers, limiterType);
+        configLock.lock();
+        try {
+            this.tiers = sorted;
+            rateLimiter.reconfigure(sorted);
+            KeyedRateLimiters keyed = participantLimiters;
+            if (keyed != null) keyed.forEach(limiter -> limiter.reconfigure(sorted));
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    private static PrioritizedRateLimiter newRateLimiter(LimiterType limiterType, List<RateLimitTier> tiers,
+                                                         int windowBuckets, Path sharedStateFile,
+                                                         PriorityLanes lanes, NanoClock clock) {
+        TimeUnit timeUnit = tiers.get(0).getTimeUnit();
+        int requestLimit = tiers.get(0).getRequestLimit();
+        RateLimiter limiter;
+        switch (limiterType) {
+            case SHARED_FILE:
+                limiter = new SharedFileRateLimiter(requestLimit, timeUnit.toNanos(1), sharedStateFile);
                 break;
-            case CSV:
-                body = buildCsv(doc);
-                contentType = "text/csv; charset=utf-8";
+            case GCRA:
+                limiter = new GcraRateLimiter(requestLimit, timeUnit.toNanos(1), clock);
                 break;
-            case XML:
-                body = buildXml(doc);
-                contentType = "application/xml; charset=utf-8";
+            case BUCKETED_WINDOW:
+                limiter = new BucketedWindowRateLimiter(tiers, windowBuckets, clock);
                 break;
+            case SLIDING_WINDOW:
             default:
-                throw new IllegalArgumentException("Unsupported format: " + format);
+                limiter = new SlidingWindowRateLimiter(requestLimit, timeUnit.toNanos(1), clock);
+        }
+        return new PrioritizedRateLimiter(new AdaptiveRateLimiter(limiter, requestLimit, timeUnit.toNanos(1), clock), lanes);
+    }
+
+    /**
+     * Файл состояния участника рядом с общим. ИНН из одних цифр входит в имя как есть, любой
+     * другой ключ — через SHA-256, чтобы «/», «..» или NUL не выводили за каталог и не ломали путь.
+     * Файлы участников не удаляются: другой процесс может держать их отображёнными.
+     */
+    private static Path participantStateFile(Path sharedStateFile, String inn) {
+        String name = sharedStateFile.getFileName() + "-";
+        if (!inn.isEmpty() && inn.length() <= 32 && inn.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            return sharedStateFile.resolveSibling(name + inn);
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(inn.getBytes(StandardCharsets.UTF_8));
+            return sharedStateFile.resolveSibling(name + "x" + HexFormat.of().formatHex(hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Включает отдельный лимит для каждого участника оборота (по ИНН документа) вместо общего.
+     * Лимитеры участников, не отправлявших документы дольше idleTimeout, удаляются; если участников
+     * больше maxParticipants, удаляются давно не использованные. Удаляется только лимитер без
+     * ожидающих и без разрешений, ещё действующих в окне, иначе новый лимитер того же участника
+     * забыл бы уже израсходованную квоту; поэтому участников временно может быть больше
+     * maxParticipants. Документы без ИНН идут через общий лимит.
+     *
+     * @param idleTimeout не меньше самого длинного окна лимита
+     */
+    public void enablePerParticipantLimits(Duration idleTimeout, int maxParticipants) {
+        Objects.requireNonNull(idleTimeout, "idleTimeout");
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) throw new IllegalArgumentException("idleTimeout must be > 0");
+        if (maxParticipants <= 0) throw new IllegalArgumentException("maxParticipants must be > 0");
+        List<RateLimitTier> current = tiers;
+        long longestWindowNanos = current.get(current.size() - 1).getTimeUnit().toNanos(1);
+        if (idleTimeout.toNanos() < longestWindowNanos) {
+            throw new IllegalArgumentException("idleTimeout must not be shorter than the rate limit window");
+        }
+        KeyedRateLimiters previous = participantLimiters;
+        this.participantLimiters = new KeyedRateLimiters(limiterFactory, idleTimeout.toNanos(), maxParticipants, clock);
+        if (previous != null) previous.closeUnleased();
+    }
+
+    public void disablePerParticipantLimits() {
+        KeyedRateLimiters previous = participantLimiters;
+        this.participantLimiters = null;
+        if (previous != null) previous.closeUnleased();
+    }
+
+    /**
+     * Текущий действующий лимит запросов на окно: меньше настроенного, пока сервер отвечает 429/503.
+     */
+    public int getEffectiveRequestLimit() {
+        return rateLimiter.effectiveLimit();
+    }
+
+    public int getEffectiveRequestLimit(String participantInn) {
+        KeyedRateLimiters keyed = participantLimiters;
+        if (keyed == null || participantInn == null) return rateLimiter.effectiveLimit();
+        PrioritizedRateLimiter limiter = keyed.peek(participantInn);
+        return limiter != null ? limiter.effectiveLimit() : rateLimiter.effectiveLimit();
+    }
+
+    public HttpResponse<String> createEntryDocument(Document doc, Format format, String signature)
+            throws IOException, InterruptedException {
+        return createEntryDocument(doc, format, signature, Priority.NORMAL);
+    }
+
+    /**
+     * Отправляет документ в очереди лимитера с указанным приоритетом: срочные документы
+     * не ждут за накопившимися пакетными.
+     */
+    public HttpResponse<String> createEntryDocument(Document doc, Format format, String signature, Priority priority)
+            throws IOException, InterruptedException {
+        checkArguments(doc, format, signature);
+        Objects.requireNonNull(priority, "priority");
+
+        return acquireAndSend(doc, format, signature, priority, Long.MAX_VALUE);
+    }
+
+    /**
+     * То же, что {@link #createEntryDocument(Document, Format, String)}, но ждёт разрешения
+     * лимитера не дольше timeout.
+     *
+     * @throws RateLimitExceededException если разрешение не получено за отведённое время
+     */
+    public HttpResponse<String> createEntryDocument(Document doc, Format format, String signature,
+                                                    long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        return createEntryDocument(doc, format, signature, Priority.NORMAL, timeout, unit);
+    }
+
+    public HttpResponse<String> createEntryDocument(Document doc, Format format, String signature, Priority priority,
+                                                    long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        checkArguments(doc, format, signature);
+        Objects.requireNonNull(priority, "priority");
+        Objects.requireNonNull(unit, "unit");
+
+        HttpResponse<String> response = acquireAndSend(doc, format, signature, priority, unit.toNanos(timeout));
+        if (response == null) {
+            throw new RateLimitExceededException("No rate limit permit within " + timeout + " " + unit);
+        }
+        return response;
+    }
+
+    /**
+     * Отправляет документ, только если лимит позволяет сделать это прямо сейчас.
+     *
+     * @return ответ сервера или пустой Optional, если лимит исчерпан
+     */
+    public Optional<HttpResponse<String>> tryCreateEntryDocument(Document doc, Format format, String signature)
+            throws IOException, InterruptedException {
+        return tryCreateEntryDocument(doc, format, signature, Priority.NORMAL);
+    }
+
+    public Optional<HttpResponse<String>> tryCreateEntryDocument(Document doc, Format format, String signature,
+                                                                 Priority priority)
+            throws IOException, InterruptedException {
+        checkArguments(doc, format, signature);
+        Objects.requireNonNull(priority, "priority");
+
+        return Optional.ofNullable(acquireAndSend(doc, format, signature, priority, 0));
+    }
+
+    /**
+     * Асинхронная отправка: ожидание разрешения лимитера идёт по таймеру, а не в припаркованном
+     * потоке, запрос уходит через {@link HttpClient#sendAsync}. Тело собирается и подписывается
+     * после выдачи разрешения на executor'е HttpClient'а ({@link Builder#executor(Executor)},
+     * по умолчанию executor асинхронных задач CompletableFuture), а не на потоке таймера. В режиме виртуальных потоков
+     * каждая отправка целиком выполняется блокирующим путём в своём виртуальном потоке.
+     */
+    public CompletableFuture<HttpResponse<String>> createEntryDocumentAsync(Document doc, Format format, String signature) {
+        return createEntryDocumentAsync(doc, format, signature, Priority.NORMAL);
+    }
+
+    public CompletableFuture<HttpResponse<String>> createEntryDocumentAsync(Document doc, Format format, String signature,
+                                                                            Priority priority) {
+        checkArguments(doc, format, signature);
+        Objects.requireNonNull(priority, "priority");
+
+        return submitAsync(doc, () -> buildRequest(doc, format, signature), priority);
+    }
+
+    private CompletableFuture<HttpResponse<String>> submitAsync(Document doc, RequestFactory requests, Priority priority) {
+        try {
+            enterInFlight();
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = doSubmitAsync(doc, requests, priority);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((r, e) -> exitInFlight());
+    }
+
+    private CompletableFuture<HttpResponse<String>> doSubmitAsync(Document doc, RequestFactory requests,
+                                                                  Priority priority) {
+        if (virtualThreadExecutor != null) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return doAcquireAndSend(doc, requests, priority, Long.MAX_VALUE);
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, virtualThreadExecutor);
+        }
+
+        PermitCost cost = permitCost;
+        AtomicReference<HttpRequest> request = new AtomicReference<>();
+        if (cost.usesBodySize()) {
+            try {
+                request.set(requests.create());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        int permits = permitsFor(cost, doc, request.get());
+        RetryPolicy retry = retryPolicyFor(doc);
+        RetryBudget budget = retryBudget;
+        CircuitBreaker breaker = circuitBreaker;
+        Hedging hedging = hedgingFor(doc);
+        budget.onRequest();
+        PrioritizedRateLimiter limiter = limiterFor(doc);
+        return attemptAsync(limiter, requests, request, priority, permits, retry, budget, breaker, hedging, 1)
+                .whenComplete((response, e) -> limiter.release());
+    }
+
+    /**
+     * @param request собранный запрос; пуст, пока тело не собрано после первого разрешения
+     */
+    private CompletableFuture<HttpResponse<String>> attemptAsync(PrioritizedRateLimiter limiter, RequestFactory requests,
+                                                                 AtomicReference<HttpRequest> request,
+                                                                 Priority priority, int permits, RetryPolicy retry,
+                                                                 RetryBudget budget, CircuitBreaker breaker,
+                                                                 Hedging hedging, int attempt) {
+        AtomicLong ticket = new AtomicLong(breaker.tryPermit());
+        if (ticket.get() < 0) return CompletableFuture.failedFuture(breaker.openException());
+
+        long start = System.nanoTime();
+        AtomicLong sendStart = new AtomicLong();
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        pendingPermits.add(permit);
+        permit.whenComplete((ignored, e) -> pendingPermits.remove(permit));
+        // close() мог пройти по pendingPermits до add: тогда разрешение отклоняем сами
+        if (closed) {
+            permit.completeExceptionally(closedException());
+        } else {
+            limiter.acquireAsync(priority, permits, permit);
+        }
+        // разрешение выдаёт таймер лимитера: сборку, кодирование и подпись тела уводим с его потока
+        CompletableFuture<HttpResponse<String>> sent = permit.thenComposeAsync(ignored -> {
+                    lanes.record(priority, System.nanoTime() - start, true);
+                    ticket.set(breaker.revalidate(ticket.get()));
+                    if (ticket.get() < 0) return CompletableFuture.failedFuture(breaker.openException());
+                    if (request.get() == null) {
+                        try {
+                            request.set(requests.create());
+                        } catch (IOException e) {
+                            return CompletableFuture.failedFuture(e);
+                        }
+                    }
+                    sendStart.set(System.nanoTime());
+                    return sendAsync(request.get(), limiter, priority, permits, hedging);
+                }, continuationExecutor)
+                .thenApply(response -> observe(limiter, response));
+        return sent.handle((response, failure) -> {
+            Throwable cause = unwrap(failure);
+            if (sendStart.get() == 0) {
+                breaker.release(ticket.get());
+            } else {
+                breaker.onResult(ticket.get(), System.nanoTime() - sendStart.get(), isFailure(response, cause));
+            }
+            // до отправки не дошло (размыкатель, сборка тела, закрытие клиента) — не повторяем
+            if (sendStart.get() == 0 || !shouldRetry(retry, budget, attempt, response, cause)) return sent;
+            Executor backoff = CompletableFuture.delayedExecutor(retry.backoffNanos(attempt), TimeUnit.NANOSECONDS);
+            CompletableFuture<HttpResponse<String>> next = CompletableFuture.runAsync(() -> { }, backoff)
+                    .thenCompose(ignored -> attemptAsync(limiter, requests, request, priority, permits, retry, budget,
+                            breaker, hedging, attempt + 1));
+            // размыкатель успел разомкнуться: повтора не будет, отдаём итог этой попытки
+            return next.handle((r, f) -> unwrap(f) instanceof CircuitOpenException ? sent : next)
+                    .thenCompose(Function.identity());
+        }).thenCompose(Function.identity());
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static boolean isFailure(HttpResponse<?> response, Throwable failure) {
+        return failure != null || response.statusCode() >= 500;
+    }
+
+    /**
+     * Повтор отправки при IOException, 429 и 5xx (кроме 501). Повтор отправляет тот же HttpRequest,
+     * то есть уже закодированное тело, и заново берёт разрешения лимитера с тем же приоритетом,
+     * так что повторы расходуют квоту наравне с новыми документами. Документы с одноразовым
+     * источником товаров ({@link Document#productsFrom(Stream)}) не повторяются.
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        Objects.requireNonNull(policy, "policy");
+        configLock.lock();
+        try {
+            this.retryBudget = new RetryBudget(policy.getBudgetRatio());
+            this.retryPolicy = policy;
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Включает размыкатель перед сервером: пока он разомкнут, отправки сразу завершаются
+     * {@link CircuitOpenException}, не дожидаясь ни разрешения лимитера, ни таймаута HTTP.
+     * Отказом считаются IOException и ответы 5xx, медленным — ответ дольше slowCallDuration;
+     * время ожидания разрешения лимитера не учитывается.
+     */
+    public void setCircuitBreaker(CircuitBreakerPolicy policy) {
+        this.circuitBreaker = new CircuitBreaker(Objects.requireNonNull(policy, "policy"), clock);
+    }
+
+    public void disableCircuitBreaker() {
+        this.circuitBreaker = new CircuitBreaker(null, clock);
+    }
+
+    public CircuitState getCircuitState() {
+        return circuitBreaker.state();
+    }
+
+    /**
+     * Дублирующая отправка: если ответа нет дольше заданного перцентиля недавних задержек, тот же
+     * запрос отправляется второй раз и побеждает первый полученный ответ, а второй запрос
+     * отменяется. Дубль берёт разрешение лимитера только если оно доступно сразу и в очереди
+     * никто не ждёт, и только в пределах бюджета (доля от числа отправок). Сервер отличает
+     * дубль по doc_id, поэтому у документов с хеджированием doc_id должен быть заполнен.
+     * Если первая попытка уже завершилась ошибкой, дубль не отправляется: это дело политики повторов.
+     * Задержки для перцентиля считаются от начала отправки до первого итога, с учётом дублей.
+     * Документы с одноразовым источником товаров не дублируются.
+     */
+    public void setHedging(HedgingPolicy policy) {
+        this.hedging = new Hedging(Objects.requireNonNull(policy, "policy"));
+    }
+
+    public void disableHedging() {
+        this.hedging = null;
+    }
+
+    /**
+     * Ограничения сервера на один документ: 0 — без ограничения. Документы, которые в них
+     * не укладываются, отправляются через {@link #createEntryDocuments(Document, Format, Function)}.
+     *
+     * @param maxProducts  максимум товаров в одном запросе
+     * @param maxBodyBytes максимум байт закодированного (до сжатия) тела одного запроса
+     */
+    public void setSplitLimits(int maxProducts, long maxBodyBytes) {
+        if (maxProducts < 0) throw new IllegalArgumentException("maxProducts must be >= 0");
+        if (maxBodyBytes < 0) throw new IllegalArgumentException("maxBodyBytes must be >= 0");
+        this.splitMaxProducts = maxProducts;
+        this.splitMaxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Делит документ на части по {@link #setSplitLimits(int, long)} и отправляет их параллельно,
+     * каждую со своим разрешением лимитера. Подпись зависит от тела, поэтому каждая часть
+     * подписывается отдельно: signer получает её закодированное тело. Части получают doc_id
+     * вида {@code <doc_id>-<номер части с 1>}.
+     */
+    public SplitResult createEntryDocuments(Document doc, Format format, Function<byte[], String> signer)
+            throws IOException, InterruptedException {
+        return createEntryDocuments(doc, format, signer, Priority.NORMAL);
+    }
+
+    public SplitResult createEntryDocuments(Document doc, Format format, Function<byte[], String> signer,
+                                            Priority priority) throws IOException, InterruptedException {
+        try {
+            return createEntryDocumentsAsync(doc, format, signer, priority).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Одновременно в работе не больше частей, чем текущий лимит окна (и не больше
+     * {@link SplitSubmission#MAX_PARALLEL_PARTS}), поэтому следующие части нарезаются и кодируются
+     * по мере отправки предыдущих, а ленивый источник товаров читается постепенно.
+     * Ошибка отправки части не прерывает остальные и попадает в {@link SplitResult#getFailures()}.
+     * Если нарезка оборвалась (исключение ленивого источника, закрытие клиента) после отправки
+     * части документа, future завершается итогом по уже отправленным частям с
+     * {@link SplitResult#getSplitFailure()}; исключением — только если не отправлено ни одной части.
+     */
+    public CompletableFuture<SplitResult> createEntryDocumentsAsync(Document doc, Format format,
+                                                                    Function<byte[], String> signer,
+                                                                    Priority priority) {
+        Objects.requireNonNull(doc, "document");
+        Objects.requireNonNull(format, "format");
+        Objects.requireNonNull(signer, "signer");
+        Objects.requireNonNull(priority, "priority");
+        if (closed) return CompletableFuture.failedFuture(closedException());
+
+        DocumentSplitter splitter;
+        try {
+            splitter = new DocumentSplitter(doc, format, splitMaxProducts, splitMaxBodyBytes);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        int parallelism = Math.max(1, Math.min(effectiveLimitFor(doc), SplitSubmission.MAX_PARALLEL_PARTS));
+        SplitSubmission submission = new SplitSubmission(splitter, format, signer, priority, parallelism);
+        submission.pump();
+        return submission.result;
+    }
+
+    /**
+     * @return ответ или null, если разрешение не получено за timeoutNanos
+     */
+    private HttpResponse<String> acquireAndSend(Document doc, Format format, String signature, Priority priority,
+                                                long timeoutNanos) throws IOException, InterruptedException {
+        return acquireAndSend(doc, () -> buildRequest(doc, format, signature), priority, timeoutNanos);
+    }
+
+    private HttpResponse<String> acquireAndSend(Document doc, RequestFactory requests, Priority priority,
+                                                long timeoutNanos) throws IOException, InterruptedException {
+        enterInFlight();
+        try {
+            return doAcquireAndSend(doc, requests, priority, timeoutNanos);
+        } finally {
+            exitInFlight();
+        }
+    }
+
+    private HttpResponse<String> doAcquireAndSend(Document doc, RequestFactory requests, Priority priority,
+                                                  long timeoutNanos) throws IOException, InterruptedException {
+        PrioritizedRateLimiter limiter = limiterFor(doc);
+        try {
+            return sendWithRetries(limiter, doc, requests, priority, timeoutNanos);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    private HttpResponse<String> sendWithRetries(PrioritizedRateLimiter limiter, Document doc, RequestFactory requests,
+                                                 Priority priority, long timeoutNanos)
+            throws IOException, InterruptedException {
+        PermitCost cost = permitCost;
+        // тело собирается до ожидания, только если от его размера зависит число разрешений
+        HttpRequest request = cost.usesBodySize() ? requests.create() : null;
+        int permits = permitsFor(cost, doc, request);
+        RetryPolicy retry = retryPolicyFor(doc);
+        RetryBudget budget = retryBudget;
+        CircuitBreaker breaker = circuitBreaker;
+        Hedging hedging = hedgingFor(doc);
+        budget.onRequest();
+        HttpResponse<String> response = null;
+        IOException failure = null;
+        for (int attempt = 1; ; attempt++) {
+            if (attempt > 1) TimeUnit.NANOSECONDS.sleep(retry.backoffNanos(attempt - 1));
+            long ticket = breaker.tryPermit();
+            if (ticket < 0) {
+                if (attempt == 1) throw breaker.openException();
+                if (failure != null) throw failure;
+                return response;
+            }
+            long start = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = limiter.tryAcquire(priority, permits, timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException | RuntimeException e) {
+                breaker.release(ticket);
+                throw e;
+            }
+            lanes.record(priority, System.nanoTime() - start, acquired);
+            if (!acquired) {
+                breaker.release(ticket);
+                // timeout действует на каждую попытку: не дождались разрешения на повтор — отдаём прошлый итог
+                if (failure != null) throw failure;
+                return response;
+            }
+            ticket = breaker.revalidate(ticket);
+            if (ticket < 0) {
+                if (attempt == 1) throw breaker.openException();
+                if (failure != null) throw failure;
+                return response;
+            }
+            if (request == null) {
+                try {
+                    request = requests.create();
+                } catch (IOException | RuntimeException e) {
+                    breaker.release(ticket);
+                    throw e;
+                }
+            }
+
+            response = null;
+            failure = null;
+            long sendStart = System.nanoTime();
+            try {
+                response = observe(limiter, send(request, limiter, priority, permits, hedging));
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException | RuntimeException e) {
+                breaker.release(ticket);
+                throw e;
+            }
+            breaker.onResult(ticket, System.nanoTime() - sendStart, isFailure(response, failure));
+            if (!shouldRetry(retry, budget, attempt, response, failure)) {
+                if (failure != null) throw failure;
+                return response;
+            }
+        }
+    }
+
+    private Hedging hedgingFor(Document doc) {
+        return doc.productSourceOnce ? null : hedging;
+    }
+
+    private HttpResponse<String> send(HttpRequest request, PrioritizedRateLimiter limiter, Priority priority,
+                                      int permits, Hedging hedging) throws IOException, InterruptedException {
+        if (hedging == null) return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+        CompletableFuture<HttpResponse<String>> response = sendAsync(request, limiter, priority, permits, hedging);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendAsync(HttpRequest request, PrioritizedRateLimiter limiter,
+                                                              Priority priority, int permits, Hedging hedging) {
+        if (hedging == null) return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+
+        hedging.budget.onRequest();
+        long sendStart = System.nanoTime();
+        CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        // незавершённые попытки; 0 — итог решён, новых попыток не будет
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Throwable> lastFailure = new AtomicReference<>();
+        List<CompletableFuture<HttpResponse<String>>> attempts = new CopyOnWriteArrayList<>();
+        Consumer<CompletableFuture<HttpResponse<String>>> launch = attempt -> {
+            attempts.add(attempt);
+            attempt.whenComplete((response, failure) -> {
+                if (failure == null) {
+                    if (result.complete(response)) attempts.forEach(a -> a.cancel(true));
+                } else {
+                    lastFailure.set(failure);
+                    // обе попытки упали: отдаём ошибку последней
+                    if (pending.decrementAndGet() == 0) result.completeExceptionally(failure);
+                }
+            });
+        };
+        launch.accept(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+
+        CompletableFuture.delayedExecutor(hedging.delayNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+            // место под дубль занимаем до разрешения лимитера и только пока итог не решён
+            if (pending.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) return;
+            boolean launched = false;
+            try {
+                // первая попытка уже упала — дубль стал бы повтором в обход политики повторов
+                if (result.isDone() || lastFailure.get() != null || !hedging.budget.tryRetry()) return;
+                if (limiter.tryAcquireOrDelay(priority, permits) != 0 || result.isDone()) return;
+                launch.accept(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+                launched = true;
+            } catch (RejectedExecutionException e) {
+                // клиент закрывается: дубль не нужен
+            } finally {
+                if (!launched && pending.decrementAndGet() == 0) result.completeExceptionally(lastFailure.get());
+            }
+        });
+        result.whenComplete((response, failure) -> {
+            if (result.isCancelled()) {
+                attempts.forEach(a -> a.cancel(true));
+            } else {
+                // время до первого итога от начала отправки, кто бы его ни дал: замеры только
+                // победителей от их собственного старта занижали бы перцентиль
+                hedging.record(System.nanoTime() - sendStart);
+            }
+        });
+        return result;
+    }
+
+    private RetryPolicy retryPolicyFor(Document doc) {
+        return doc.productSourceOnce ? RetryPolicy.NONE : retryPolicy;
+    }
+
+    private static boolean shouldRetry(RetryPolicy retry, RetryBudget budget, int attempt,
+                                       HttpResponse<?> response, Throwable failure) {
+        if (attempt >= retry.getMaxAttempts()) return false;
+        boolean retryable;
+        if (failure != null) {
+            retryable = failure instanceof IOException && !(failure instanceof RateLimitExceededException)
+                    && !(failure instanceof CircuitOpenException);
+        } else {
+            int status = response.statusCode();
+            retryable = status == 429 || (status >= 500 && status != 501);
+        }
+        return retryable && budget.tryRetry();
+    }
+
+    /**
+     * @param request null, если тело ещё не собрано (стоимость не зависит от его размера)
+     */
+    private static int permitsFor(PermitCost cost, Document doc, HttpRequest request) {
+        long bodyBytes = request == null ? -1
+                : request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(-1L);
+        return Math.max(1, cost.permits(doc, bodyBytes));
+    }
+
+    /**
+     * Лимитер документа, занятый до {@link PrioritizedRateLimiter#release()}: занятый лимитер
+     * участника не вытесняется, поэтому у одного ИНН не бывает двух лимитеров сразу.
+     */
+    private PrioritizedRateLimiter limiterFor(Document doc) {
+        KeyedRateLimiters keyed = participantLimiters;
+        String inn = keyed != null ? participantInnOf(doc) : null;
+        if (inn == null) return rateLimiter.lease();
+        PrioritizedRateLimiter limiter = keyed.lease(inn);
+        // лимитер мог быть создан уже после того, как close() закрыл существующие
+        if (closed) limiter.close();
+        return limiter;
+    }
+
+    private int effectiveLimitFor(Document doc) {
+        KeyedRateLimiters keyed = participantLimiters;
+        String inn = keyed != null ? participantInnOf(doc) : null;
+        PrioritizedRateLimiter limiter = inn != null ? keyed.peek(inn) : null;
+        return limiter != null ? limiter.effectiveLimit() : rateLimiter.effectiveLimit();
+    }
+
+    private static <T> HttpResponse<T> observe(PrioritizedRateLimiter limiter, HttpResponse<T> response) {
+        limiter.onResponse(response);
+        return response;
+    }
+
+    /**
+     * Копия документа без товаров.
+     */
+    private static Document withoutProducts(Document d) {
+        Document copy = new Document();
+        copy.description = d.description;
+        copy.doc_id = d.doc_id;
+        copy.doc_status = d.doc_status;
+        copy.doc_type = d.doc_type;
+        copy.importRequest = d.importRequest;
+        copy.owner_inn = d.owner_inn;
+        copy.participant_inn = d.participant_inn;
+        copy.producer_inn = d.producer_inn;
+        copy.production_date = d.production_date;
+        copy.production_type = d.production_type;
+        copy.reg_date = d.reg_date;
+        copy.reg_number = d.reg_number;
+        return copy;
+    }
+
+    /**
+     * Копия mapper для головы потокового JSON: документ пишется по своему runtime-типу, как при
+     * обычной записи, но на месте товаров стоит null, который {@link JsonChunkSource} заменяет потоком.
+     */
+    private static ObjectMapper headMapperOf(ObjectMapper mapper) {
+        SimpleModule module = new SimpleModule();
+        module.setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            public List<BeanPropertyWriter> changeProperties(SerializationConfig config, BeanDescription beanDesc,
+                                                             List<BeanPropertyWriter> properties) {
+                if (!Document.class.isAssignableFrom(beanDesc.getBeanClass())) return properties;
+                List<BeanPropertyWriter> result = new ArrayList<>(properties.size());
+                for (BeanPropertyWriter property : properties) {
+                    result.add(property.getName().equals("products") ? new ProductsPlaceholder(property) : property);
+                }
+                return result;
+            }
+        });
+        return mapper.copy().registerModule(module);
+    }
+
+    private static final class ProductsPlaceholder extends BeanPropertyWriter {
+        private static final long serialVersionUID = 1L;
+
+        ProductsPlaceholder(BeanPropertyWriter base) {
+            super(base);
+        }
+
+        @Override
+        public void serializeAsField(Object bean, JsonGenerator gen, SerializerProvider prov) throws Exception {
+            Document d = (Document) bean;
+            if (d.products == null && d.productSource == null) {
+                super.serializeAsField(bean, gen, prov);
+                return;
+            }
+            gen.writeFieldName(getName());
+            gen.writeNull();
+        }
+    }
+
+    private static String participantInnOf(Document d) {
+        return d.participant_inn != null ? d.participant_inn : (d.description != null ? d.description.participantInn : null);
+    }
+
+    private static void checkArguments(Document doc, Format format, String signature) {
+        Objects.requireNonNull(doc, "document");
+        Objects.requireNonNull(format, "format");
+        Objects.requireNonNull(signature, "signature");
+    }
+
+    private static boolean overrides(Class<?> type, String name, Class<?>... parameterTypes) {
+        for (Class<?> c = type; c != CrptApi.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+                // ищем выше по иерархии
+            }
+        }
+        return false;
+    }
+
+    private HttpRequest buildRequest(Document doc, Format format, String signature) throws IOException {
+        boolean streaming = (doc.productSource != null
+                || (doc.products != null && doc.products.length > streamingThreshold))
+                && !(format == Format.JSON && customJsonSerializer);
+        if (!streaming) return buildRequest(format, encode(doc, format), signature);
+
+        Compression compression = this.compression;
+        return newRequest(format, signature, compression, streamingBodyPublisher(doc, format, compression));
+    }
+
+    private HttpRequest buildRequest(Format format, byte[] body, String signature) throws IOException {
+        Compression compression = body.length >= compressionThreshold ? this.compression : Compression.NONE;
+        byte[] encoded = compression != Compression.NONE ? compression.compress(body) : body;
+        return newRequest(format, signature, compression, HttpRequest.BodyPublishers.ofByteArray(encoded));
+    }
+
+    private byte[] encode(Document doc, Format format) throws IOException {
+        switch (format) {
+            case JSON:
+                return serializeDocumentBytes(doc);
+            case CSV:
+                return buildCsv(doc);
+            case XML:
+                return buildXml(doc);
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    private HttpRequest newRequest(Format format, String signature, Compression compression,
+                                   HttpRequest.BodyPublisher body) {
+        String contentType;
+        switch (format) {
+            case JSON:
+                contentType = "application/json";
+                break;
+            case CSV:
+                contentType = "text/csv; charset=utf-8";
+                break;
+            case XML:
+                contentType = "application/xml; charset=utf-8";
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(baseUri)
+                .header("Content-Type", contentType)
+                .header("X-Signature", signature);
+        if (requestTimeout != null) builder.timeout(requestTimeout);
+        if (compression != Compression.NONE) builder.header("Content-Encoding", compression.contentEncoding);
+        return builder.POST(body).build();
+    }
+
+    public HttpResponse<String> createEntryDocumentJson(Document doc, String signature) throws IOException, InterruptedException {
+        return createEntryDocument(doc, Format.JSON, signature);
+    }
+
+    public HttpResponse<String> createEntryDocumentCsv(Document doc, String signature) throws IOException, InterruptedException {
+        return createEntryDocument(doc, Format.CSV, signature);
+    }
+
+    public HttpResponse<String> createEntryDocumentXml(Document doc, String signature) throws IOException, InterruptedException {
+        return createEntryDocument(doc, Format.XML, signature);
+    }
+
+    /**
+     * @deprecated переопределяйте {@link #serializeDocumentBytes(Document)}. Переопределённый метод
+     * по-прежнему вызывается для JSON (через строку, без потоковой отправки), но медленнее.
+     */
+    @Deprecated
+    protected String serializeDocument(Object document) throws JsonProcessingException {
+        return objectMapper.writeValueAsString(document);
+    }
+
+    /**
+     * JSON документа сразу в UTF-8 байты: заранее построенный ObjectWriter пишет в переиспользуемые
+     * буферы Jackson, без промежуточной строки и её повторного кодирования в BodyPublishers.ofString.
+     * Если подкласс переопределил этот метод, JSON-документы не отправляются потоком.
+     */
+    protected byte[] serializeDocumentBytes(Document document) throws JsonProcessingException {
+        if (legacyJsonSerializer) return serializeDocument(document).getBytes(StandardCharsets.UTF_8);
+        if (document.productSource == null) return documentWriter.writeValueAsBytes(document);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonChunkSource source = new JsonChunkSource(headMapper, document, out)) {
+            while (source.writeNext()) {
+                // пишем до конца
+            }
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Stream<Document.Product> productsOf(Document d) {
+        if (d.productSource != null) return d.productSource.get();
+        return d.products != null ? Arrays.stream(d.products) : Stream.empty();
+    }
+
+    /**
+     * STRICT — разрешение всегда получает самая приоритетная очередь; WEIGHTED — очереди делят
+     * лимит пропорционально {@link Priority#getWeight()}, пакетные отправки не голодают.
+     */
+    public void setPriorityPolicy(PriorityPolicy policy) {
+        Objects.requireNonNull(policy, "policy");
+        lanes.policy = policy;
+    }
+
+    public LaneStatistics getLaneStatistics(Priority priority) {
+        Objects.requireNonNull(priority, "priority");
+        return lanes.snapshot(priority);
+    }
+
+    /**
+     * Задаёт, сколько разрешений лимитера расходует один документ (по умолчанию — одно).
+     */
+    public void setPermitCost(PermitCost permitCost) {
+        Objects.requireNonNull(permitCost, "permitCost");
+        this.permitCost = permitCost;
+    }
+
+    /**
+     * Документы, в которых товаров больше productCount, отправляются потоковым телом
+     * ({@link #streamingBodyPublisher(Document, Format)}) вместо собранного целиком массива байт.
+     * По умолчанию потоковая отправка выключена.
+     */
+    public void setStreamingThreshold(int productCount) {
+        if (productCount < 0) throw new IllegalArgumentException("productCount must be >= 0");
+        this.streamingThreshold = productCount;
+    }
+
+    /**
+     * Тела не короче thresholdBytes сжимаются и отправляются с заголовком Content-Encoding.
+     * Потоковые тела ({@link #setStreamingThreshold(int)}) заранее неизвестной длины сжимаются всегда.
+     * Лимитер с {@link PermitCost#perBodyBytes(long)} считает уже сжатый размер.
+     */
+    public void setCompression(Compression compression, int thresholdBytes) {
+        Objects.requireNonNull(compression, "compression");
+        if (thresholdBytes < 0) throw new IllegalArgumentException("thresholdBytes must be >= 0");
+        this.compressionThreshold = thresholdBytes;
+        this.compression = compression;
+    }
+
+    /**
+     * Тело запроса, которое кодирует товары документа порциями по мере запроса данных HttpClient'ом
+     * (с учётом flow control HTTP/2), поэтому память на отправку не зависит от размера документа.
+     * Длина тела заранее неизвестна, и она передаётся chunked/потоком DATA-фреймов.
+     */
+    public HttpRequest.BodyPublisher streamingBodyPublisher(Document doc, Format format) {
+        return streamingBodyPublisher(doc, format, Compression.NONE);
+    }
+
+    private HttpRequest.BodyPublisher streamingBodyPublisher(Document doc, Format format, Compression compression) {
+        Objects.requireNonNull(doc, "document");
+        Objects.requireNonNull(format, "format");
+        switch (format) {
+            case JSON:
+                return new StreamingBodyPublisher(sink -> new JsonChunkSource(headMapper, doc, sink), compression);
+            case CSV:
+                return new StreamingBodyPublisher(sink -> new CsvChunkSource(doc, sink), compression);
+            case XML:
+                return new StreamingBodyPublisher(sink -> new XmlChunkSource(doc, sink), compression);
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    public void setBaseUri(URI baseUri) {
+        Objects.requireNonNull(baseUri, "baseUri");
+        this.baseUri = baseUri;
+    }
+
+    @Override
+    public void close() {
+        try {
+            shutdown(DEFAULT_CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Останавливает клиент. Новые документы отклоняются с {@link RejectedExecutionException}, и с
+     * ним же сразу завершаются отправки, ждущие разрешения лимитера. Уже отправленные запросы
+     * дожидаются ответа, но не дольше timeout; после этого HttpClient останавливается, а
+     * не успевшие запросы прерываются. Повторный вызов только дожидается остановки.
+     *
+     * @return true, если все отправки завершились и HttpClient остановился за timeout
+     */
+    public boolean shutdown(Duration timeout) throws InterruptedException {
+        Objects.requireNonNull(timeout, "timeout");
+        long deadline = System.nanoTime() + timeout.toNanos();
+        closed = true;
+
+        if (clock instanceof ManualNanoClock) ((ManualNanoClock) clock).listeners.remove(clockListener);
+        rateLimiter.close();
+        KeyedRateLimiters keyed = participantLimiters;
+        if (keyed != null) keyed.forEach(PrioritizedRateLimiter::close);
+        for (CompletableFuture<Void> permit : pendingPermits) permit.completeExceptionally(closedException());
+
+        boolean drainedInTime;
+        try {
+            drainedInTime = awaitDrained(deadline);
+        } catch (InterruptedException e) {
+            httpClient.shutdownNow();
+            if (virtualThreadExecutor != null) virtualThreadExecutor.shutdownNow();
+            throw e;
+        }
+
+        if (drainedInTime) {
+            httpClient.shutdown();
+        } else {
+            httpClient.shutdownNow();
+        }
+        boolean terminated = httpClient.awaitTermination(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+            terminated &= virtualThreadExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        }
+        return drainedInTime && terminated;
+    }
+
+    private boolean awaitDrained(long deadline) throws InterruptedException {
+        closeLock.lock();
+        try {
+            while (inFlight.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                drained.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * Будит выбранных ожидающих всех лимитеров после сдвига {@link ManualNanoClock}.
+     */
+    private void wakeWaiters() {
+        rateLimiter.wakeSelected();
+        KeyedRateLimiters keyed = participantLimiters;
+        if (keyed != null) keyed.forEach(PrioritizedRateLimiter::wakeSelected);
+    }
+
+    private void enterInFlight() {
+        inFlight.incrementAndGet();
+        if (closed) {
+            exitInFlight();
+            throw closedException();
+        }
+    }
+
+    private void exitInFlight() {
+        if (inFlight.decrementAndGet() == 0 && closed) {
+            closeLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                closeLock.unlock();
+            }
+        }
+    }
+
+    private static RejectedExecutionException closedException() {
+        return new RejectedExecutionException("CrptApi is closed");
+    }
+
+    private byte[] buildCsv(Document d) {
+        return CsvEncoder.encode(d);
+    }
+
+    private byte[] buildXml(Document d) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlEncoder.write(d, out);
+        return out.toByteArray();
+    }
+
+    private interface RateLimiter {
+        /**
+         * Берёт разрешения, если они доступны прямо сейчас, и возвращает 0;
+         * иначе ничего не занимает и возвращает паузу (нс) до следующей попытки.
+         */
+        long tryAcquireOrDelay(int permits);
+
+        void setLimit(int limit);
+
+        /**
+         * Меняет лимит и окно, сохраняя уже выданные разрешения. Лимитеры с одним уровнем берут первый.
+         */
+        void reconfigure(List<RateLimitTier> tiers);
+
+        /**
+         * true — ни одно выданное разрешение больше не действует: лимитер неотличим от нового.
+         */
+        boolean isIdle();
+
+        /**
+         * Освобождает внешние ресурсы (файл {@link SharedFileRateLimiter}); после закрытия лимитер не используется.
+         */
+        default void close() {
+        }
+    }
+
+    /**
+     * Монотонные часы лимитеров в наносекундах. Лимитер {@link LimiterType#SHARED_FILE}
+     * всегда использует системное время, так как оно должно совпадать между процессами.
+     */
+    @FunctionalInterface
+    public interface NanoClock {
+        NanoClock SYSTEM = System::nanoTime;
+
+        long nanoTime();
+    }
+
+    /**
+     * Часы, которые идут только при вызове {@link #advance(long, TimeUnit)}. Сдвиг будит отправки,
+     * ждущие разрешения у клиентов на этих часах, и они сразу пересчитывают ожидание. По реальному
+     * времени идут таймауты ожидания, паузы между повторами и задержка хеджирования.
+     */
+    public static final class ManualNanoClock implements NanoClock {
+        private final AtomicLong now = new AtomicLong();
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public long nanoTime() {
+            return now.get();
+        }
+
+        public void advance(long duration, TimeUnit unit) {
+            now.addAndGet(unit.toNanos(duration));
+            for (Runnable listener : listeners) listener.run();
+        }
+    }
+
+    /**
+     * Стоимость документа в разрешениях лимитера. Если разрешений больше, чем лимит окна,
+     * лимитер засчитывает документ как целое окно.
+     */
+    @FunctionalInterface
+    public interface PermitCost {
+        PermitCost ONE = ignoringBodySize((doc, bodyBytes) -> 1);
+
+        /**
+         * @param bodyBytes размер тела запроса в байтах или -1, если он неизвестен
+         */
+        int permits(Document doc, long bodyBytes);
+
+        /**
+         * false — стоимость не зависит от bodyBytes: разрешение берётся до кодирования тела,
+         * и, например, tryCreateEntryDocument без свободного разрешения тело не кодирует.
+         */
+        default boolean usesBodySize() {
+            return true;
+        }
+
+        /**
+         * Количество товаров ленивого источника ({@link Document#productsFrom}) заранее неизвестно,
+         * такой документ стоит одно разрешение.
+         */
+        static PermitCost perProducts(int productsPerPermit) {
+            if (productsPerPermit <= 0) throw new IllegalArgumentException("productsPerPermit must be > 0");
+            return ignoringBodySize((doc, bodyBytes) -> {
+                int products = doc.products != null ? doc.products.length : 0;
+                return Math.max(1, (products + productsPerPermit - 1) / productsPerPermit);
+            });
+        }
+
+        static PermitCost perBodyBytes(long bytesPerPermit) {
+            if (bytesPerPermit <= 0) throw new IllegalArgumentException("bytesPerPermit must be > 0");
+            return (doc, bodyBytes) -> bodyBytes <= 0 ? 1
+                    : (int) Math.min(Integer.MAX_VALUE, (bodyBytes + bytesPerPermit - 1) / bytesPerPermit);
+        }
+
+        private static PermitCost ignoringBodySize(PermitCost cost) {
+            return new PermitCost() {
+                @Override
+                public int permits(Document doc, long bodyBytes) {
+                    return cost.permits(doc, bodyBytes);
+                }
+
+                @Override
+                public boolean usesBodySize() {
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * Статистика ожидания разрешений в очереди одного приоритета.
+     */
+    public static final class LaneStatistics {
+        private final long acquired;
+        private final long rejected;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        LaneStatistics(long acquired, long rejected, long totalWaitNanos, long maxWaitNanos) {
+            this.acquired = acquired;
+            this.rejected = rejected;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public long getAcquired() {
+            return acquired;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getAverageWaitNanos() {
+            return acquired == 0 ? 0 : totalWaitNanos / acquired;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+    }
+
+    /**
+     * Уровень лимита: не более requestLimit запросов за одну единицу timeUnit.
+     */
+    public static final class RateLimitTier {
+        private final TimeUnit timeUnit;
+        private final int requestLimit;
+
+        public RateLimitTier(TimeUnit timeUnit, int requestLimit) {
+            Objects.requireNonNull(timeUnit, "timeUnit");
+            if (requestLimit <= 0) throw new IllegalArgumentException("requestLimit must be > 0");
+            this.timeUnit = timeUnit;
+            this.requestLimit = requestLimit;
+        }
+
+        public TimeUnit getTimeUnit() {
+            return timeUnit;
+        }
+
+        public int getRequestLimit() {
+            return requestLimit;
+        }
+    }
+
+    /**
+     * Итог отправки документа по частям. Списки индексируются номером части.
+     */
+    public static final class SplitResult {
+        private final List<Document> parts;
+        private final List<HttpResponse<String>> responses;
+        private final List<Throwable> failures;
+        private final Throwable splitFailure;
+
+        SplitResult(List<Document> parts, List<HttpResponse<String>> responses, List<Throwable> failures,
+                    Throwable splitFailure) {
+            this.parts = Collections.unmodifiableList(parts);
+            this.responses = Collections.unmodifiableList(responses);
+            this.failures = Collections.unmodifiableList(failures);
+            this.splitFailure = splitFailure;
+        }
+
+        public List<Document> getParts() {
+            return parts;
+        }
+
+        /**
+         * Ответ сервера по каждой части или null, если её отправка завершилась исключением.
+         */
+        public List<HttpResponse<String>> getResponses() {
+            return responses;
+        }
+
+        /**
+         * Исключение по каждой части или null, если ответ получен.
+         */
+        public List<Throwable> getFailures() {
+            return failures;
+        }
+
+        /**
+         * Исключение, на котором оборвалась нарезка, или null: товары после последней части
+         * из {@link #getParts()} не отправлены.
+         */
+        public Throwable getSplitFailure() {
+            return splitFailure;
+        }
+
+        /**
+         * Документ нарезан до конца, и все части получили ответ 2xx.
+         */
+        public boolean isSuccessful() {
+            if (splitFailure != null) return false;
+            for (HttpResponse<String> response : responses) {
+                if (response == null || response.statusCode() / 100 != 2) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Политика повторов: до maxAttempts попыток с экспоненциальной задержкой и полным джиттером
+     * (случайная пауза от нуля до initialBackoff * 2^(n-1), но не больше maxBackoff), чтобы клиенты
+     * после общего сбоя не повторяли синхронно. budgetRatio — доля повторов от числа документов:
+     * когда сервер лежит долго, повторы прекращаются и нагрузка растёт не больше чем в (1 + budgetRatio) раз.
+     */
+    public static final class RetryPolicy {
+        public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO, Duration.ZERO, 0);
+
+        private final int maxAttempts;
+        private final long initialBackoffNanos;
+        private final long maxBackoffNanos;
+        private final double budgetRatio;
+
+        public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double budgetRatio) {
+            Objects.requireNonNull(initialBackoff, "initialBackoff");
+            Objects.requireNonNull(maxBackoff, "maxBackoff");
+            if (maxAttempts <= 0) throw new IllegalArgumentException("maxAttempts must be > 0");
+            if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0) {
+                throw new IllegalArgumentException("backoff must satisfy 0 <= initialBackoff <= maxBackoff");
+            }
+            if (!(budgetRatio >= 0)) throw new IllegalArgumentException("budgetRatio must be >= 0");
+            this.maxAttempts = maxAttempts;
+            this.initialBackoffNanos = initialBackoff.toNanos();
+            this.maxBackoffNanos = maxBackoff.toNanos();
+            this.budgetRatio = budgetRatio;
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public Duration getInitialBackoff() {
+            return Duration.ofNanos(initialBackoffNanos);
+        }
+
+        public Duration getMaxBackoff() {
+            return Duration.ofNanos(maxBackoffNanos);
+        }
+
+        public double getBudgetRatio() {
+            return budgetRatio;
+        }
+
+        /**
+         * @param retry номер повтора, с 1
+         */
+        long backoffNanos(int retry) {
+            int shift = Math.min(retry - 1, 62);
+            long cap = initialBackoffNanos > (maxBackoffNanos >> shift) ? maxBackoffNanos : initialBackoffNanos << shift;
+            return cap == 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+        }
+    }
+
+    public static class RateLimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RateLimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Дублирование запроса через задержку, равную перцентилю percentile последних задержек
+     * ответа (в пределах [minDelay, maxDelay]; пока замеров мало — maxDelay). budgetRatio —
+     * доля дублей от числа отправок.
+     */
+    public static final class HedgingPolicy {
+        private final double percentile;
+        private final long minDelayNanos;
+        private final long maxDelayNanos;
+        private final double budgetRatio;
+
+        public HedgingPolicy(double percentile, Duration minDelay, Duration maxDelay, double budgetRatio) {
+            Objects.requireNonNull(minDelay, "minDelay");
+            Objects.requireNonNull(maxDelay, "maxDelay");
+            if (!(percentile > 0 && percentile < 1)) throw new IllegalArgumentException("percentile must be in (0, 1)");
+            if (minDelay.isNegative() || maxDelay.compareTo(minDelay) < 0) {
+                throw new IllegalArgumentException("delay must satisfy 0 <= minDelay <= maxDelay");
+            }
+            if (!(budgetRatio > 0)) throw new IllegalArgumentException("budgetRatio must be > 0");
+            this.percentile = percentile;
+            this.minDelayNanos = minDelay.toNanos();
+            this.maxDelayNanos = maxDelay.toNanos();
+            this.budgetRatio = budgetRatio;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public Duration getMinDelay() {
+            return Duration.ofNanos(minDelayNanos);
+        }
+
+        public Duration getMaxDelay() {
+            return Duration.ofNanos(maxDelayNanos);
+        }
+
+        public double getBudgetRatio() {
+            return budgetRatio;
+        }
+    }
+
+    /**
+     * Пороги размыкателя. Доли отказов и медленных ответов считаются по последним windowSize
+     * отправкам, но не раньше minimumCalls отправок. Разомкнутый размыкатель через openDuration
+     * пропускает halfOpenCalls пробных отправок и замыкается, если доля плохих среди них ниже
+     * failureRateThreshold.
+     */
+    public static final class CircuitBreakerPolicy {
+        private final double failureRateThreshold;
+        private final double slowCallRateThreshold;
+        private final long slowCallNanos;
+        private final int windowSize;
+        private final int minimumCalls;
+        private final long openNanos;
+        private final int halfOpenCalls;
+
+        public CircuitBreakerPolicy(double failureRateThreshold, double slowCallRateThreshold, Duration slowCallDuration,
+                                    int windowSize, int minimumCalls, Duration openDuration, int halfOpenCalls) {
+            Objects.requireNonNull(slowCallDuration, "slowCallDuration");
+            Objects.requireNonNull(openDuration, "openDuration");
+            if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+                throw new IllegalArgumentException("failureRateThreshold must be in (0, 1]");
+            }
+            if (!(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1)) {
+                throw new IllegalArgumentException("slowCallRateThreshold must be in (0, 1]");
+            }
+            if (windowSize <= 0) throw new IllegalArgumentException("windowSize must be > 0");
+            if (minimumCalls <= 0 || minimumCalls > windowSize) {
+                throw new IllegalArgumentException("minimumCalls must be in [1, windowSize]");
+            }
+            if (halfOpenCalls <= 0) throw new IllegalArgumentException("halfOpenCalls must be > 0");
+            if (slowCallDuration.isNegative() || openDuration.isNegative()) {
+                throw new IllegalArgumentException("durations must be >= 0");
+            }
+            this.failureRateThreshold = failureRateThreshold;
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.slowCallNanos = slowCallDuration.toNanos();
+            this.windowSize = windowSize;
+            this.minimumCalls = minimumCalls;
+            this.openNanos = openDuration.toNanos();
+            this.halfOpenCalls = halfOpenCalls;
+        }
+
+        public double getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public double getSlowCallRateThreshold() {
+            return slowCallRateThreshold;
+        }
+
+        public Duration getSlowCallDuration() {
+            return Duration.ofNanos(slowCallNanos);
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public int getMinimumCalls() {
+            return minimumCalls;
+        }
+
+        public Duration getOpenDuration() {
+            return Duration.ofNanos(openNanos);
+        }
+
+        public int getHalfOpenCalls() {
+            return halfOpenCalls;
+        }
+    }
+
+    private static final class SlidingWindowRateLimiter implements RateLimiter {
+        private int limit;
+        private long windowNanos;
+        private final NanoClock clock;
+        private final Deque<Long> timestamps;
+        private final ReentrantLock lock;
+
+        SlidingWindowRateLimiter(int limit, long windowNanos, NanoClock clock) {
+            this.limit = limit;
+            this.windowNanos = windowNanos;
+            this.clock = clock;
+            this.timestamps = new ArrayDeque<>(limit + 2);
+            this.lock = new ReentrantLock(true);
+        }
+
+        @Override
+        public long tryAcquireOrDelay(int permits) {
+            lock.lock();
+            try {
+                long now = clock.nanoTime();
+                purgeOld(now);
+                int n = Math.min(permits, limit);
+                if (timestamps.size() + n <= limit) {
+                    for (int i = 0; i < n; i++) timestamps.addLast(now);
+                    return 0;
+                }
+                return Math.max(1, timestamps.peekFirst() + windowNanos - now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void setLimit(int limit) {
+            lock.lock();
+            try {
+                this.limit = limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void reconfigure(List<RateLimitTier> tiers) {
+            lock.lock();
+            try {
+                this.limit = tiers.get(0).getRequestLimit();
+                this.windowNanos = tiers.get(0).getTimeUnit().toNanos(1);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isIdle() {
+            lock.lock();
+            try {
+                purgeOld(clock.nanoTime());
+                return timestamps.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void purgeOld(long nowNanos) {
+            while (!timestamps.isEmpty() && nowNanos - timestamps.peekFirst() >= windowNanos) {
+                timestamps.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Параметры GCRA: шаг между разрешениями interval = ⌈window / limit⌉ (вверх, чтобы
+     * limit · interval ≥ window) без допуска всплеска, поэтому ни в одно окно не попадает больше
+     * limit разрешений. Неизменяемы: setLimit подменяет объект целиком.
+     */
+    private static final class GcraSchedule {
+        final int limit;
+        final long windowNanos;
+        final long intervalNanos;
+
+        GcraSchedule(int limit, long windowNanos) {
+            this.limit = limit;
+            this.windowNanos = windowNanos;
+            this.intervalNanos = Math.max(1, (windowNanos + limit - 1) / limit);
+        }
+
+        /**
+         * Пачка из n разрешений выдаётся, когда прошло (n − 1) · interval после TAT: как будто её
+         * разрешения пришли по одному с обычным шагом и последнее из них — сейчас.
+         *
+         * @return 0, если при таком TAT разрешения выдаются сейчас, иначе сколько ждать
+         */
+        long delayNanos(long tat, long now, int permits) {
+            return Math.max(0, tat + (Math.min(permits, limit) - 1) * intervalNanos - now);
+        }
+
+        /**
+         * Документ дороже лимита засчитывается как целое окно, как у оконных лимитеров;
+         * заодно permits · interval не переполняется.
+         */
+        long nextTat(long tat, long now, int permits) {
+            return (tat - now > 0 ? tat : now) + Math.min(permits, limit) * intervalNanos;
+        }
+    }
+
+    private static final class GcraRateLimiter implements RateLimiter {
+        private volatile GcraSchedule schedule;
+        private final NanoClock clock;
+        private final AtomicLong tat;
+
+        GcraRateLimiter(int limit, long windowNanos, NanoClock clock) {
+            this.schedule = new GcraSchedule(limit, windowNanos);
+            this.clock = clock;
+            // TAT на окно в прошлом: первый документ любого веса не ждёт
+            this.tat = new AtomicLong(clock.nanoTime() - windowNanos);
+        }
+
+        @Override
+        public long tryAcquireOrDelay(int permits) {
+            while (true) {
+                GcraSchedule s = schedule;
+                long now = clock.nanoTime();
+                long current = tat.get();
+                long waitNanos = s.delayNanos(current, now, permits);
+                if (waitNanos > 0) return waitNanos;
+                if (tat.compareAndSet(current, s.nextTat(current, now, permits))) return 0;
+            }
+        }
+
+        @Override
+        public void setLimit(int limit) {
+            schedule = new GcraSchedule(limit, schedule.windowNanos);
+        }
+
+        @Override
+        public void reconfigure(List<RateLimitTier> tiers) {
+            schedule = new GcraSchedule(tiers.get(0).getRequestLimit(), tiers.get(0).getTimeUnit().toNanos(1));
+        }
+
+        @Override
+        public boolean isIdle() {
+            return tat.get() - clock.nanoTime() <= 0;
+        }
+    }
+
+    /**
+     * Скользящее окно из фиксированного числа подокон-счётчиков в кольце long[]:
+     * память не зависит от limit, захват — O(1) (амортизированно).
+     * Учитывается на одно подокно больше, чем помещается в окно, поэтому лимит
+     * никогда не превышается, а лишнее ожидание не больше одного подокна.
+     * Несколько уровней лимита (например, в секунду и в час) проверяются под одной блокировкой:
+     * разрешение выдаётся, только если его допускают все уровни сразу.
+     * Лимит, передаваемый в setLimit, относится к первому (самому короткому) уровню,
+     * остальные масштабируются пропорционально.
+     */
+    private static final class BucketedWindowRateLimiter implements RateLimiter {
+        private int[] baseLimits;
+        private Window[] windows;
+        private final int buckets;
+        private final NanoClock clock;
+        private final ReentrantLock lock;
+
+        BucketedWindowRateLimiter(List<RateLimitTier> tiers, int buckets, NanoClock clock) {
+            this.clock = clock;
+            this.buckets = buckets;
+            long origin = clock.nanoTime();
+            this.baseLimits = new int[tiers.size()];
+            this.windows = new Window[tiers.size()];
+            for (int i = 0; i < windows.length; i++) {
+                RateLimitTier tier = tiers.get(i);
+                baseLimits[i] = tier.getRequestLimit();
+                windows[i] = new Window(tier.getRequestLimit(), tier.getTimeUnit().toNanos(1), buckets, origin);
+            }
+            this.lock = new ReentrantLock(true);
+        }
+
+        @Override
+        public long tryAcquireOrDelay(int permits) {
+            lock.lock();
+            try {
+                return reserve(permits, clock.nanoTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void setLimit(int limit) {
+            lock.lock();
+            try {
+                for (int i = 0; i < windows.length; i++) {
+                    windows[i].limit = (int) Math.max(1, (long) baseLimits[i] * limit / baseLimits[0]);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Окна, длина которых не изменилась, сохраняют свои подокна как есть; для новых окон
+         * уже выданные разрешения переносятся целиком в текущее подокно, чтобы смена
+         * конфигурации не открыла внеочередной всплеск.
+         */
+        @Override
+        public void reconfigure(List<RateLimitTier> tiers) {
+            lock.lock();
+            try {
+                long now = clock.nanoTime();
+                int[] newBaseLimits = new int[tiers.size()];
+                Window[] newWindows = new Window[tiers.size()];
+                for (int i = 0; i < newWindows.length; i++) {
+                    RateLimitTier tier = tiers.get(i);
+                    long windowNanos = tier.getTimeUnit().toNanos(1);
+                    newBaseLimits[i] = tier.getRequestLimit();
+                    Window old = windows[Math.min(i, windows.length - 1)];
+                    old.advance(now);
+                    if (old.windowNanos == windowNanos && i < windows.length) {
+                        old.limit = tier.getRequestLimit();
+                        newWindows[i] = old;
+                    } else {
+                        Window w = new Window(tier.getRequestLimit(), windowNanos, buckets, now);
+                        w.counts[0] = old.total;
+                        w.total = old.total;
+                        newWindows[i] = w;
+                    }
+                }
+                this.baseLimits = newBaseLimits;
+                this.windows = newWindows;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isIdle() {
+            lock.lock();
+            try {
+                long now = clock.nanoTime();
+                for (Window w : windows) {
+                    w.advance(now);
+                    if (w.total > 0) return false;
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long reserve(int permits, long now) {
+            long waitNanos = 0;
+            for (Window w : windows) {
+                w.advance(now);
+                if (w.total + Math.min(permits, w.limit) > w.limit) {
+                    waitNanos = Math.max(waitNanos, w.nanosUntilOldestExpires(now));
+                }
+            }
+            if (waitNanos > 0) return waitNanos;
+            for (Window w : windows) {
+                int n = Math.min(permits, w.limit);
+                w.counts[w.slot(w.headBucket)] += n;
+                w.total += n;
+            }
+            return 0;
+        }
+
+        private static final class Window {
+            private int limit;
+            private final long windowNanos;
+            private final long bucketNanos;
+            private final long[] counts;
+            private final long origin;
+            private long headBucket;
+            private long total;
+
+            Window(int limit, long windowNanos, int buckets, long origin) {
+                this.limit = limit;
+                this.windowNanos = windowNanos;
+                this.bucketNanos = Math.max(1, windowNanos / buckets);
+                this.counts = new long[buckets + 1];
+                this.origin = origin;
+            }
+
+            private int slot(long bucket) {
+                return (int) (bucket % counts.length);
+            }
+
+            private void advance(long now) {
+                long bucket = (now - origin) / bucketNanos;
+                if (bucket <= headBucket) return;
+                if (bucket - headBucket >= counts.length) {
+                    Arrays.fill(counts, 0L);
+                    total = 0;
+                } else {
+                    for (long b = headBucket + 1; b <= bucket; b++) {
+                        int i = slot(b);
+                        total -= counts[i];
+                        counts[i] = 0;
+                    }
+                }
+                headBucket = bucket;
+            }
+
+            private long nanosUntilOldestExpires(long now) {
+                for (long b = headBucket - counts.length + 1; b <= headBucket; b++) {
+                    if (b >= 0 && counts[slot(b)] > 0) {
+                        return Math.max(1, origin + (b + counts.length) * bucketNanos - now);
+                    }
+                }
+                return bucketNanos;
+            }
+        }
+    }
+
+    /**
+     * GCRA (тот же шаг без всплеска, что у {@link GcraRateLimiter}), чьё состояние (TAT) лежит в файле,
+     * отображённом в память, и потому общее для всех процессов хоста. TAT обновляется CAS через VarHandle прямо в отображённой странице;
+     * если платформа не поддерживает атомарный доступ, используется блокировка файла.
+     * Время берётся по системным часам (наносекунды от эпохи): System.nanoTime несопоставим между процессами.
+     */
+    private static final class SharedFileRateLimiter implements RateLimiter {
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+        private static final int TAT_OFFSET = 0;
+
+        private volatile GcraSchedule schedule;
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final boolean atomic;
+        private final ReentrantLock lock;
+
+        SharedFileRateLimiter(int limit, long windowNanos, Path file) {
+            this.schedule = new GcraSchedule(limit, windowNanos);
+            this.file = file;
+            this.lock = new ReentrantLock();
+            try {
+                this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map shared limiter file " + file, e);
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            boolean supported;
+            try {
+                LONGS.getVolatile(buffer, TAT_OFFSET);
+                supported = true;
+            } catch (IllegalStateException | UnsupportedOperationException e) {
+                supported = false;
+            }
+            this.atomic = supported;
+        }
+
+        @Override
+        public long tryAcquireOrDelay(int permits) {
+            return atomic ? reserveAtomic(permits) : reserveLocked(permits);
+        }
+
+        @Override
+        public void setLimit(int limit) {
+            schedule = new GcraSchedule(limit, schedule.windowNanos);
+        }
+
+        @Override
+        public void reconfigure(List<RateLimitTier> tiers) {
+            schedule = new GcraSchedule(tiers.get(0).getRequestLimit(), tiers.get(0).getTimeUnit().toNanos(1));
+        }
+
+        /**
+         * Смотрит на TAT без блокировки файла: ответ может устареть сразу, если файлом пользуются другие процессы.
+         */
+        @Override
+        public boolean isIdle() {
+            long current = atomic ? (long) LONGS.getVolatile(buffer, TAT_OFFSET) : buffer.getLong(TAT_OFFSET);
+            return current - epochNanos() <= 0;
+        }
+
+        private long reserveAtomic(int permits) {
+            while (true) {
+                GcraSchedule s = schedule;
+                long now = epochNanos();
+                long current = (long) LONGS.getVolatile(buffer, TAT_OFFSET);
+                long waitNanos = s.delayNanos(current, now, permits);
+                if (waitNanos > 0) return waitNanos;
+                if (LONGS.compareAndSet(buffer, TAT_OFFSET, current, s.nextTat(current, now, permits))) return 0;
+            }
+        }
+
+        /**
+         * Закрывает канал; отображение файла освобождается сборщиком мусора вместе с буфером.
+         * Файл не удаляется: процесс, который держит его открытым, продолжил бы считать квоту
+         * в удалённом файле, а новые — в новом, и квота между ними разделилась бы.
+         */
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot close shared limiter file " + file, e);
+            }
+        }
+
+        private long reserveLocked(int permits) {
+            // FileLock принадлежит всей JVM, поэтому потоки процесса дополнительно упорядочиваем сами
+            lock.lock();
+            try {
+                FileLock fileLock = channel.lock();
+                try {
+                    GcraSchedule s = schedule;
+                    long now = epochNanos();
+                    long current = buffer.getLong(TAT_OFFSET);
+                    long waitNanos = s.delayNanos(current, now, permits);
+                    if (waitNanos > 0) return waitNanos;
+                    buffer.putLong(TAT_OFFSET, s.nextTat(current, now, permits));
+                    return 0;
+                } finally {
+                    fileLock.release();
+                }
+            } catch (ClosedChannelException e) {
+                throw closedException();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Shared limiter file lock failed", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static long epochNanos() {
+            Instant now = Instant.now();
+            return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        }
+    }
+
+    /**
+     * Подстраивает лимит под реальное поведение сервера (AIMD): на 429/503 лимит делится пополам,
+     * но не чаще раза в окно — ответы на запросы, отправленные ещё при старом лимите, его больше
+     * не режут; Retry-After приостанавливает выдачу разрешений; после успешных ответов лимит
+     * возвращается к настроенному шагами не чаще раза в окно.
+     */
+    private static final class AdaptiveRateLimiter implements RateLimiter {
+        private static final int RECOVERY_STEPS = 10;
+
+        private final RateLimiter delegate;
+        private long windowNanos;
+        private final NanoClock clock;
+        private final ReentrantLock lock;
+        private int maxLimit;
+        private volatile int effectiveLimit;
+        private volatile long pausedUntilNanos;
+        private long lastAdjustNanos;
+        private long lastDecreaseNanos;
+
+        AdaptiveRateLimiter(RateLimiter delegate, int limit, long windowNanos, NanoClock clock) {
+            this.delegate = delegate;
+            this.windowNanos = windowNanos;
+            this.clock = clock;
+            this.lock = new ReentrantLock();
+            this.maxLimit = limit;
+            this.effectiveLimit = limit;
+            this.pausedUntilNanos = clock.nanoTime();
+            this.lastAdjustNanos = clock.nanoTime();
+            this.lastDecreaseNanos = lastAdjustNanos - windowNanos;
+        }
+
+        @Override
+        public long tryAcquireOrDelay(int permits) {
+            long pauseNanos = pausedUntilNanos - clock.nanoTime();
+            if (pauseNanos > 0) return pauseNanos;
+            return delegate.tryAcquireOrDelay(permits);
+        }
+
+        @Override
+        public void setLimit(int limit) {
+            lock.lock();
+            try {
+                maxLimit = limit;
+                effectiveLimit = Math.min(effectiveLimit, limit);
+                delegate.setLimit(effectiveLimit);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void reconfigure(List<RateLimitTier> tiers) {
+            lock.lock();
+            try {
+                int limit = tiers.get(0).getRequestLimit();
+                // без активного троттлинга сразу переходим на новый лимит, иначе не превышаем его
+                effectiveLimit = effectiveLimit >= maxLimit ? limit : Math.min(effectiveLimit, limit);
+                maxLimit = limit;
+                windowNanos = tiers.get(0).getTimeUnit().toNanos(1);
+                delegate.reconfigure(tiers);
+                if (effectiveLimit < maxLimit) delegate.setLimit(effectiveLimit);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Пока лимит снижен или действует Retry-After, лимитер хранит состояние, которого нет у нового.
+         */
+        @Override
+        public boolean isIdle() {
+            return effectiveLimit >= maxLimit && pausedUntilNanos - clock.nanoTime() <= 0 && delegate.isIdle();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+        int effectiveLimit() {
+            return effectiveLimit;
+        }
+
+        void onResponse(HttpResponse<?> response) {
+            int status = response.statusCode();
+            long now = clock.nanoTime();
+            if (status == 429 || status == 503) {
+                long retryAfterNanos = parseRetryAfterNanos(response.headers().firstValue("Retry-After").orElse(null));
+                lock.lock();
+                try {
+                    if (retryAfterNanos > 0 && now + retryAfterNanos - pausedUntilNanos > 0) {
+                        pausedUntilNanos = now + retryAfterNanos;
+                    }
+                    if (now - lastDecreaseNanos >= windowNanos) {
+                        effectiveLimit = Math.max(1, effectiveLimit / 2);
+                        lastAdjustNanos = now;
+                        lastDecreaseNanos = now;
+                        delegate.setLimit(effectiveLimit);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } else if (status >= 200 && status < 300 && effectiveLimit < maxLimit) {
+                lock.lock();
+                try {
+                    if (effectiveLimit < maxLimit && now - lastAdjustNanos >= windowNanos) {
+                        effectiveLimit = Math.min(maxLimit, effectiveLimit + Math.max(1, maxLimit / RECOVERY_STEPS));
+                        lastAdjustNanos = now;
+                        delegate.setLimit(effectiveLimit);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private static long parseRetryAfterNanos(String value) {
+            if (value == null || value.isBlank()) return 0;
+            String v = value.trim();
+            try {
+                return TimeUnit.SECONDS.toNanos(Long.parseLong(v));
+            } catch (NumberFormatException ignored) {
+                // не число секунд — значит HTTP-дата
+            }
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(Instant.now(), at.toInstant()).toNanos());
+            } catch (DateTimeParseException | ArithmeticException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Общие для всех лимитеров клиента политика выбора очереди и статистика ожидания по приоритетам.
+     */
+    private static final class PriorityLanes {
+        volatile PriorityPolicy policy = PriorityPolicy.STRICT;
+        private final AtomicLong[] acquired = newCounters();
+        private final AtomicLong[] rejected = newCounters();
+        private final AtomicLong[] totalWaitNanos = newCounters();
+        private final AtomicLong[] maxWaitNanos = newCounters();
+
+        void record(Priority priority, long waitNanos, boolean wasAcquired) {
+            int i = priority.ordinal();
+            if (!wasAcquired) {
+                rejected[i].incrementAndGet();
+                return;
+            }
+            acquired[i].incrementAndGet();
+            totalWaitNanos[i].addAndGet(waitNanos);
+            maxWaitNanos[i].accumulateAndGet(waitNanos, Math::max);
+        }
+
+        LaneStatistics snapshot(Priority priority) {
+            int i = priority.ordinal();
+            return new LaneStatistics(acquired[i].get(), rejected[i].get(), totalWaitNanos[i].get(), maxWaitNanos[i].get());
+        }
+
+        private static AtomicLong[] newCounters() {
+            AtomicLong[] counters = new AtomicLong[Priority.values().length];
+            for (int i = 0; i < counters.length; i++) counters[i] = new AtomicLong();
+            return counters;
+        }
+    }
+
+    /**
+     * Очереди ожидающих по приоритетам перед адаптивным лимитером. Пробовать взять разрешение
+     * может только выбранный политикой ожидающий (голова самой приоритетной очереди или очереди
+     * с наименьшим виртуальным временем при WEIGHTED), остальные спят до сигнала.
+     * Асинхронные вызовы стоят в тех же очередях: за выбранного асинхронного ожидающего
+     * разрешение берёт задача на таймере, так что приоритет не зависит от того, чей таймер
+     * сработал раньше.
+     * Пока очереди пусты, разрешение берётся прямо у делегата — без блокировки и без Condition,
+     * так что у GCRA это по-прежнему один CAS; такие захваты не двигают виртуальное время WEIGHTED:
+     * без очередей взвешивать некого.
+     */
+    private static final class PrioritizedRateLimiter implements RateLimiter {
+        // с такой паузой неблокирующие вызовы повторяют попытку, пока впереди есть ожидающие
+        private static final long QUEUED_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private final AdaptiveRateLimiter delegate;
+        private final PriorityLanes lanes;
+        private final ReentrantLock lock;
+        private final List<ArrayDeque<Waiter>> queues;
+        private final double[] pass;
+        private double virtualTime;
+        private volatile boolean closed;
+        // ожидающие во всех очередях; меняется под блокировкой, читается без неё на быстром пути
+        private final AtomicInteger queued = new AtomicInteger();
+        private boolean drainScheduled;
+        private long drainAtNanos;
+        // вызовы, взявшие лимитер через limiterFor и ещё не завершившиеся
+        private final AtomicInteger leases = new AtomicInteger();
+
+        PrioritizedRateLimiter(AdaptiveRateLimiter delegate, PriorityLanes lanes) {
+            this.delegate = delegate;
+            this.lanes = lanes;
+            this.lock = new ReentrantLock();
+            this.queues = new ArrayList<>();
+            for (int i = 0; i < Priority.values().length; i++) queues.add(new ArrayDeque<>());
+            this.pass = new double[Priority.values().length];
+        }
+
+        /**
+         * Ожидающий в очереди: поток на своём Condition или асинхронный вызов со своим future.
+         */
+        private static final class Waiter {
+            final Priority priority;
+            final int permits;
+            final Condition condition;
+            final CompletableFuture<Void> permit;
+
+            Waiter(Priority priority, int permits, Condition condition, CompletableFuture<Void> permit) {
+                this.priority = priority;
+                this.permits = permits;
+                this.condition = condition;
+                this.permit = permit;
+            }
+        }
+
+        @Override
+        public long tryAcquireOrDelay(int permits) {
+            return tryAcquireOrDelay(Priority.NORMAL, permits);
+        }
+
+        @Override
+        public void setLimit(int limit) {
+            delegate.setLimit(limit);
+            wakeSelected();
+        }
+
+        @Override
+        public void reconfigure(List<RateLimitTier> tiers) {
+            delegate.reconfigure(tiers);
+            wakeSelected();
+        }
+
+        @Override
+        public boolean isIdle() {
+            lock.lock();
+            try {
+                for (ArrayDeque<Waiter> queue : queues) {
+                    if (!queue.isEmpty()) return false;
+                }
+                return delegate.isIdle();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        PrioritizedRateLimiter lease() {
+            leases.incrementAndGet();
+            return this;
+        }
+
+        void release() {
+            leases.decrementAndGet();
+        }
+
+        boolean isLeased() {
+            return leases.get() > 0;
+        }
+
+        int effectiveLimit() {
+            return delegate.effectiveLimit();
+        }
+
+        void onResponse(HttpResponse<?> response) {
+            int before = delegate.effectiveLimit();
+            delegate.onResponse(response);
+            // восстановление лимита сокращает ожидание, рассчитанное по старому лимиту
+            if (delegate.effectiveLimit() > before) wakeSelected();
+        }
+
+        /**
+         * Будит выбранного ожидающего, чтобы он пересчитал ожидание по новому лимиту.
+         */
+        void wakeSelected() {
+            lock.lock();
+            try {
+                wakeNext();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Будит всех ожидающих: они и все последующие вызовы получают {@link RejectedExecutionException}.
+         * Быстрый путь, успевший проверить флаг до закрытия, может обратиться к уже закрытому
+         * делегату: делегаты на это отвечают тем же исключением.
+         */
+        @Override
+        public void close() {
+            List<Waiter> pending = new ArrayList<>();
+            lock.lock();
+            try {
+                boolean wasClosed = closed;
+                closed = true;
+                if (!wasClosed) delegate.close();
+                for (ArrayDeque<Waiter> queue : queues) {
+                    for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+                        Waiter waiter = it.next();
+                        if (waiter.condition != null) {
+                            waiter.condition.signal();
+                        } else {
+                            it.remove();
+                            queued.decrementAndGet();
+                            pending.add(waiter);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Waiter waiter : pending) waiter.permit.completeExceptionally(closedException());
+        }
+
+        boolean tryAcquire(Priority priority, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+            long timeoutNanos = unit.toNanos(timeout);
+            long start = System.nanoTime();
+            if (queued.get() == 0) {
+                if (closed) throw closedException();
+                if (delegate.tryAcquireOrDelay(permits) == 0) return true;
+                if (timeoutNanos <= 0) return false;
+            }
+            lock.lockInterruptibly();
+            Waiter self = new Waiter(priority, permits, lock.newCondition(), null);
+            enqueue(self);
+            try {
+                while (true) {
+                    if (closed) throw closedException();
+                    long remaining = timeoutNanos - (System.nanoTime() - start);
+                    if (selected() == self) {
+                        long delayNanos = delegate.tryAcquireOrDelay(permits);
+                        if (delayNanos == 0) {
+                            granted(priority, permits);
+                            return true;
+                        }
+                        if (remaining <= 0) return false;
+                        self.condition.awaitNanos(Math.min(delayNanos, remaining));
+                    } else {
+                        if (remaining <= 0) return false;
+                        self.condition.awaitNanos(remaining);
+                    }
+                }
+            } finally {
+                dequeue(self);
+                wakeNext();
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Асинхронный захват: permit завершается, когда разрешение выдано. Если permit завершат
+         * извне (закрытие клиента), ожидающий покидает очередь.
+         */
+        void acquireAsync(Priority priority, int permits, CompletableFuture<Void> permit) {
+            if (queued.get() == 0 && !closed && delegate.tryAcquireOrDelay(permits) == 0) {
+                permit.complete(null);
+                return;
+            }
+            Waiter self = new Waiter(priority, permits, null, permit);
+            boolean acquired = false;
+            lock.lock();
+            try {
+                if (closed) {
+                    permit.completeExceptionally(closedException());
+                    return;
+                }
+                long delayNanos = 0;
+                if (!hasPrecedingWaiters(priority)) {
+                    delayNanos = delegate.tryAcquireOrDelay(permits);
+                    if (delayNanos == 0) {
+                        granted(priority, permits);
+                        acquired = true;
+                    }
+                }
+                if (!acquired) {
+                    enqueue(self);
+                    if (selected() == self) scheduleDrain(delayNanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (acquired) {
+                permit.complete(null);
+            } else {
+                permit.whenComplete((ignored, e) -> {
+                    if (e != null) leave(self);
+                });
+            }
+        }
+
+        long tryAcquireOrDelay(Priority priority, int permits) {
+            if (queued.get() == 0) {
+                if (closed) throw closedException();
+                long delayNanos = delegate.tryAcquireOrDelay(permits);
+                if (delayNanos == 0 || queued.get() == 0) return delayNanos;
+            }
+            lock.lock();
+            try {
+                if (closed) throw closedException();
+                if (hasPrecedingWaiters(priority)) return QUEUED_RETRY_NANOS;
+                long delayNanos = delegate.tryAcquireOrDelay(permits);
+                if (delayNanos == 0) granted(priority, permits);
+                return delayNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void leave(Waiter waiter) {
+            lock.lock();
+            try {
+                if (dequeue(waiter)) wakeNext();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Выдаёт разрешения выбранным асинхронным ожидающим, пока они есть у делегата; выбранного
+         * синхронного будит, а на нехватку разрешений заводит таймер на нужную паузу.
+         * Future завершаются вне блокировки: их продолжения сразу отправляют запрос.
+         */
+        private void drain(long atNanos) {
+            List<Waiter> acquired = new ArrayList<>();
+            lock.lock();
+            try {
+                // таймер, который заменили более ранним, ничего не делает
+                if (!drainScheduled || drainAtNanos != atNanos) return;
+                drainScheduled = false;
+                while (true) {
+                    Waiter next = selected();
+                    if (next == null) break;
+                    if (next.condition != null) {
+                        next.condition.signal();
+                        break;
+                    }
+                    if (next.permit.isDone()) {
+                        dequeue(next);
+                        continue;
+                    }
+                    long delayNanos = delegate.tryAcquireOrDelay(next.permits);
+                    if (delayNanos > 0) {
+                        scheduleDrain(delayNanos);
+                        break;
+                    }
+                    dequeue(next);
+                    granted(next.priority, next.permits);
+                    acquired.add(next);
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Waiter waiter : acquired) waiter.permit.complete(null);
+        }
+
+        /**
+         * Держит не больше одного ожидающего таймера: более поздний запрос не переносит уже
+         * заведённый, более ранний его заменяет. Вызывается под блокировкой.
+         */
+        private void scheduleDrain(long delayNanos) {
+            long atNanos = System.nanoTime() + delayNanos;
+            if (drainScheduled && drainAtNanos - atNanos <= 0) return;
+            drainScheduled = true;
+            drainAtNanos = atNanos;
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(() -> drain(atNanos));
+        }
+
+        private void wakeNext() {
+            Waiter next = selected();
+            if (next == null) return;
+            if (next.condition != null) {
+                next.condition.signal();
+            } else {
+                scheduleDrain(0);
+            }
+        }
+
+        private void enqueue(Waiter waiter) {
+            int i = waiter.priority.ordinal();
+            ArrayDeque<Waiter> queue = queues.get(i);
+            if (queue.isEmpty()) {
+                // вернувшаяся очередь не получает «накопленного» права за время простоя
+                pass[i] = Math.max(pass[i], virtualTime);
+            }
+            queue.addLast(waiter);
+            queued.incrementAndGet();
+        }
+
+        private boolean dequeue(Waiter waiter) {
+            if (!queues.get(waiter.priority.ordinal()).remove(waiter)) return false;
+            queued.decrementAndGet();
+            return true;
+        }
+
+        private void granted(Priority priority, int permits) {
+            int i = priority.ordinal();
+            pass[i] = Math.max(pass[i], virtualTime) + (double) permits / priority.getWeight();
+            virtualTime = Math.max(virtualTime, pass[i] - (double) permits / priority.getWeight());
+        }
+
+        private boolean hasPrecedingWaiters(Priority priority) {
+            if (lanes.policy == PriorityPolicy.WEIGHTED) {
+                for (ArrayDeque<Waiter> queue : queues) {
+                    if (!queue.isEmpty()) return true;
+                }
+                return false;
+            }
+            for (int i = 0; i <= priority.ordinal(); i++) {
+                if (!queues.get(i).isEmpty()) return true;
+            }
+            return false;
+        }
+
+        private Waiter selected() {
+            int best = -1;
+            for (int i = 0; i < queues.size(); i++) {
+                if (queues.get(i).isEmpty()) continue;
+                if (lanes.policy == PriorityPolicy.STRICT) return queues.get(i).peekFirst();
+                if (best < 0 || pass[i] < pass[best]) best = i;
+            }
+            return best < 0 ? null : queues.get(best).peekFirst();
+        }
+    }
+
+    /**
+     * Размыкатель со скользящим окном из последних отправок (кольцо флагов, как в
+     * {@link BucketedWindowRateLimiter}). Каждая пропущенная отправка получает билет — номер
+     * текущего состояния; результаты отправок, начатых до смены состояния, не учитываются,
+     * поэтому запоздавшие ответы не путаются с пробными.
+     */
+    private static final class CircuitBreaker {
+        private static final byte FAILED = 1;
+        private static final byte SLOW = 2;
+
+        private final CircuitBreakerPolicy policy;
+        private final NanoClock clock;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final byte[] outcomes;
+        private int next;
+        private int recorded;
+        private int failures;
+        private int slowCalls;
+        private CircuitState state = CircuitState.CLOSED;
+        private long epoch;
+        private long openedAt;
+        private int probesStarted;
+        private int probesDone;
+        private int badProbes;
+
+        /**
+         * @param policy null — размыкатель выключен и пропускает всё
+         */
+        CircuitBreaker(CircuitBreakerPolicy policy, NanoClock clock) {
+            this.policy = policy;
+            this.clock = clock;
+            this.outcomes = new byte[policy != null ? policy.windowSize : 0];
+        }
+
+        CircuitState state() {
+            if (policy == null) return CircuitState.CLOSED;
+            lock.lock();
+            try {
+                return state;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return билет для {@link #onResult}/{@link #release} или -1, если отправка запрещена
+         */
+        long tryPermit() {
+            if (policy == null) return 0;
+            lock.lock();
+            try {
+                if (state == CircuitState.OPEN) {
+                    if (clock.nanoTime() - openedAt < policy.openNanos) return -1;
+                    transition(CircuitState.HALF_OPEN);
+                }
+                if (state == CircuitState.CLOSED) return epoch;
+                if (probesStarted >= policy.halfOpenCalls) return -1;
+                probesStarted++;
+                return epoch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Повторная проверка после ожидания разрешения лимитера: пока вызов стоял в очереди,
+         * размыкатель мог разомкнуться. Билет прошлого состояния меняется на новый.
+         *
+         * @return действующий билет или -1, если отправка теперь запрещена
+         */
+        long revalidate(long ticket) {
+            if (policy == null) return ticket;
+            lock.lock();
+            try {
+                return ticket == epoch ? ticket : tryPermit();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Отправка не состоялась (нет разрешения лимитера, прерывание): пробное место освобождается.
+         */
+        void release(long ticket) {
+            if (policy == null) return;
+            lock.lock();
+            try {
+                if (ticket == epoch && state == CircuitState.HALF_OPEN) probesStarted--;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onResult(long ticket, long durationNanos, boolean failed) {
+            if (policy == null) return;
+            boolean slow = durationNanos >= policy.slowCallNanos;
+            lock.lock();
+            try {
+                if (ticket != epoch) return;
+                switch (state) {
+                    case CLOSED:
+                        record((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+                        if (recorded >= policy.minimumCalls
+                                && (failures >= policy.failureRateThreshold * recorded
+                                || slowCalls >= policy.slowCallRateThreshold * recorded)) {
+                            transition(CircuitState.OPEN);
+                        }
+                        break;
+                    case HALF_OPEN:
+                        probesDone++;
+                        if (failed || slow) badProbes++;
+                        if (badProbes >= policy.failureRateThreshold * policy.halfOpenCalls) {
+                            transition(CircuitState.OPEN);
+                        } else if (probesDone >= policy.halfOpenCalls) {
+                            transition(CircuitState.CLOSED);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        CircuitOpenException openException() {
+            return new CircuitOpenException("Circuit breaker is open");
+        }
+
+        private void record(byte outcome) {
+            if (recorded == outcomes.length) {
+                byte oldest = outcomes[next];
+                if ((oldest & FAILED) != 0) failures--;
+                if ((oldest & SLOW) != 0) slowCalls--;
+            } else {
+                recorded++;
+            }
+            outcomes[next] = outcome;
+            if ((outcome & FAILED) != 0) failures++;
+            if ((outcome & SLOW) != 0) slowCalls++;
+            next = (next + 1) % outcomes.length;
+        }
+
+        private void transition(CircuitState to) {
+            state = to;
+            epoch++;
+            probesStarted = 0;
+            probesDone = 0;
+            badProbes = 0;
+            if (to == CircuitState.OPEN) openedAt = clock.nanoTime();
+            if (to == CircuitState.CLOSED) {
+                next = 0;
+                recorded = 0;
+                failures = 0;
+                slowCalls = 0;
+            }
+        }
+    }
+
+    /**
+     * Задержка дубля по кольцу последних задержек ответа. Перцентиль пересчитывается сортировкой
+     * копии кольца раз в RECOMPUTE_INTERVAL замеров, а не на каждую отправку. Дубли ограничены
+     * тем же бюджетом-корзиной, что и повторы.
+     */
+    private static final class Hedging {
+        private static final int SAMPLES = 512;
+        private static final int MIN_SAMPLES = 32;
+        private static final int RECOMPUTE_INTERVAL = 32;
+
+        final HedgingPolicy policy;
+        final RetryBudget budget;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] samples = new long[SAMPLES];
+        private int next;
+        private long count;
+        private volatile long delayNanos;
+
+        Hedging(HedgingPolicy policy) {
+            this.policy = policy;
+            this.budget = new RetryBudget(policy.budgetRatio);
+            this.delayNanos = policy.maxDelayNanos;
+        }
+
+        long delayNanos() {
+            return delayNanos;
+        }
+
+        void record(long latencyNanos) {
+            lock.lock();
+            try {
+                samples[next] = latencyNanos;
+                next = (next + 1) % SAMPLES;
+                count++;
+                if (count < MIN_SAMPLES || count % RECOMPUTE_INTERVAL != 0) return;
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+                Arrays.sort(sorted);
+                long p = sorted[(int) Math.min(sorted.length - 1, Math.ceil(policy.percentile * sorted.length) - 1)];
+                delayNanos = Math.max(policy.minDelayNanos, Math.min(policy.maxDelayNanos, p));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Бюджет повторов в виде корзины жетонов: документ добавляет ratio жетона, повтор тратит один.
+     * Начальный запас позволяет повторять и при редких отправках, потолок не даёт накопить
+     * бюджет за спокойные часы и потратить его разом во время сбоя.
+     */
+    private static final class RetryBudget {
+        private static final long SCALE = 1000;
+        private static final long INITIAL_RETRIES = 10;
+        private static final long MAX_RETRIES = 100;
+
+        private final long deposit;
+        private final AtomicLong balance;
+
+        RetryBudget(double ratio) {
+            this.deposit = Math.round(ratio * SCALE);
+            this.balance = new AtomicLong(deposit > 0 ? INITIAL_RETRIES * SCALE : 0);
+        }
+
+        void onRequest() {
+            if (deposit == 0) return;
+            balance.accumulateAndGet(deposit, (current, add) -> Math.min(MAX_RETRIES * SCALE, current + add));
+        }
+
+        boolean tryRetry() {
+            while (true) {
+                long current = balance.get();
+                if (current < SCALE) return false;
+                if (balance.compareAndSet(current, current - SCALE)) return true;
+            }
+        }
+    }
+
+    /**
+     * Лимитеры по ключу (ИНН участника) с вытеснением простаивающих и ограничением размера.
+     */
+    private static final class KeyedRateLimiters {
+        private static final int SWEEP_INTERVAL = 1024;
+
+        private final ConcurrentHashMap<String, Entry> limiters;
+        private final Function<String, PrioritizedRateLimiter> factory;
+        private final long idleNanos;
+        private final int maxSize;
+        private final AtomicInteger sinceSweep;
+        private final ReentrantLock sweepLock;
+        private final NanoClock clock;
+
+        KeyedRateLimiters(Function<String, PrioritizedRateLimiter> factory, long idleNanos, int maxSize, NanoClock clock) {
+            this.limiters = new ConcurrentHashMap<>();
+            this.factory = factory;
+            this.idleNanos = idleNanos;
+            this.maxSize = maxSize;
+            this.sinceSweep = new AtomicInteger();
+            this.sweepLock = new ReentrantLock();
+            this.clock = clock;
+        }
+
+        /**
+         * Лимитер создаётся вне блокировки ключа (для SHARED_FILE это открытие и отображение файла):
+         * проигравший гонку putIfAbsent экземпляр закрывается. Под блокировкой ключа остаётся только
+         * сам захват ({@link PrioritizedRateLimiter#lease()}), и вытеснение, которое удаляет под той же
+         * блокировкой, занятый лимитер не удалит.
+         */
+        PrioritizedRateLimiter lease(String key) {
+            long now = clock.nanoTime();
+            Entry entry = null;
+            while (entry == null) {
+                Entry current = limiters.get(key);
+                if (current == null) {
+                    Entry created = new Entry(factory.apply(key), now);
+                    current = limiters.putIfAbsent(key, created);
+                    if (current != null) {
+                        created.limiter.close();
+                    } else {
+                        current = created;
+                    }
+                }
+                Entry candidate = current;
+                // запись могли вытеснить или заменить между get и захватом: тогда пробуем снова
+                entry = limiters.computeIfPresent(key, (k, e) -> {
+                    if (e != candidate) return e;
+                    e.lastUsedNanos = now;
+                    e.leaseCount++;
+                    e.limiter.lease();
+                    return e;
+                }) == candidate ? candidate : null;
+            }
+            if (limiters.size() > maxSize || sinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+                sweep(now);
+            }
+            return entry.limiter;
         }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(baseUri)
-                .header("Content-Type", contentType)
-                .header("X-Signature", signature)
-                .POST(HttpRequest.BodyPublishers.ofString(body))
-                .build();
-
-        return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-    }
-
-    public HttpResponse<String> createEntryDocumentJson(Document doc, String signature) throws IOException, InterruptedException {
-        return createEntryDocument(doc, Format.JSON, signature);
-    }
+        PrioritizedRateLimiter peek(String key) {
+            Entry entry = limiters.get(key);
+            return entry != null ? entry.limiter : null;
+        }
 
-    public HttpResponse<String> createEntryDocumentCsv(Document doc, String signature) throws IOException, InterruptedException {
-        return createEntryDocument(doc, Format.CSV, signature);
-    }
+        void forEach(Consumer<PrioritizedRateLimiter> action) {
+            limiters.values().forEach(e -> action.accept(e.limiter));
+        }
 
-    public HttpResponse<String> createEntryDocumentXml(Document doc, String signature) throws IOException, InterruptedException {
-        return createEntryDocument(doc, Format.XML, signature);
-    }
+        private void sweep(long now) {
+            if (!sweepLock.tryLock()) return;
+            try {
+                sinceSweep.set(0);
+                for (String key : limiters.keySet()) {
+                    evictIfIdle(key, e -> now - e.lastUsedNanos > idleNanos);
+                }
+                int excess = limiters.size() - maxSize;
+                if (excess > 0) {
+                    // снимок времени, чтобы сортировка не видела меняющиеся значения
+                    limiters.values().forEach(e -> e.sweepAgeNanos = now - e.lastUsedNanos);
+                    List<String> oldest = limiters.entrySet().stream()
+                            .sorted(Comparator.comparingLong((Map.Entry<String, Entry> e) -> e.getValue().sweepAgeNanos).reversed())
+                            .map(Map.Entry::getKey)
+                            .toList();
+                    for (String key : oldest) {
+                        if (excess == 0) break;
+                        if (evictIfIdle(key, e -> true)) excess--;
+                    }
+                }
+            } finally {
+                sweepLock.unlock();
+            }
+        }
 
-    protected String serializeDocument(Object document) throws JsonProcessingException {
-        return objectMapper.writeValueAsString(document);
-    }
+        /**
+         * Удаляет лимитер, только если он никем не занят и его квота полностью восстановилась.
+         * isIdle берёт блокировки лимитера, поэтому проверяется до блокировки ключа; под ней
+         * только убеждаемся, что с тех пор лимитер никто не занимал.
+         */
+        private boolean evictIfIdle(String key, Predicate<Entry> expired) {
+            Entry entry = limiters.get(key);
+            if (entry == null) return false;
+            long leaseCount = entry.leaseCount;
+            if (!expired.test(entry) || entry.limiter.isLeased() || !entry.limiter.isIdle()) return false;
+            boolean[] evicted = new boolean[1];
+            limiters.computeIfPresent(key, (k, e) -> {
+                if (e != entry || e.leaseCount != leaseCount || e.limiter.isLeased()) return e;
+                evicted[0] = true;
+                return null;
+            });
+            // удалённый лимитер никем не занят, и новых вызовов у него уже не будет
+            if (evicted[0]) entry.limiter.close();
+            return evicted[0];
+        }
 
-    public void setBaseUri(URI baseUri) {
-        Objects.requireNonNull(baseUri, "baseUri");
-        this.baseUri = baseUri;
-    }
+        /**
+         * Набор больше не используется: свободные лимитеры закрываются сразу, занятые остаются
+         * у своих вызовов и освобождаются сборщиком мусора.
+         */
+        void closeUnleased() {
+            for (String key : limiters.keySet()) {
+                Entry[] removed = new Entry[1];
+                limiters.computeIfPresent(key, (k, e) -> {
+                    if (e.limiter.isLeased()) return e;
+                    removed[0] = e;
+                    return null;
+                });
+                if (removed[0] != null) removed[0].limiter.close();
+            }
+        }
 
-    @Override
-    public void close() {
+        private static final class Entry {
+            final PrioritizedRateLimiter limiter;
+            volatile long lastUsedNanos;
+            // меняется только под блокировкой ключа; вытеснение по нему видит захваты после своей проверки
+            volatile long leaseCount;
+            long sweepAgeNanos;
 
+            Entry(PrioritizedRateLimiter limiter, long lastUsedNanos) {
+                this.limiter = limiter;
+                this.lastUsedNanos = lastUsedNanos;
+            }
+        }
     }
 
-    private String buildCsv(Document d) {
-        String header = String.join(",",
+    /**
+     * CSV документа сразу в UTF-8 во временный буфер потока: заголовок закодирован один раз,
+     * общие для всех строк поля документа кодируются один раз и копируются в каждую строку,
+     * экранирование делается за один проход по значению.
+     */
+    private static final class CsvEncoder {
+        private static final byte[] HEADER = (String.join(",",
                 "Тип документа",
                 "ИНН участника оборота товаров",
                 "Дата производства",
@@ -122,185 +3226,918 @@ public class CrptApi implements AutoCloseable {
                 "Документ обязательной сертификации",
                 "Номер документа",
                 "Дата документа"
-        );
-
-        StringBuilder sb = new StringBuilder();
-        sb.append(header).append("\n");
-
-        String docType = safeCsv(d.doc_type);
-        String participantInn = safeCsv(d.participant_inn != null ? d.participant_inn : (d.description != null ? d.description.participantInn : null));
-        String prodDate = safeCsv(d.production_date);
-        String producerInn = safeCsv(d.producer_inn);
-        String ownerInn = safeCsv(d.owner_inn);
-        String productionType = safeCsv(d.production_type);
-
-        if (d.products != null && d.products.length > 0) {
-            for (Document.Product p : d.products) {
-                String kit = safeCsv(p.uit_code);
-                String kitu = safeCsv(p.uitu_code);
-                String tnved = safeCsv(p.tnved_code);
-                String prodDateProduct = safeCsv(p.production_date != null ? p.production_date : "");
-                String certType = safeCsv(p.certificate_document);
-                String certNumber = safeCsv(p.certificate_document_number);
-                String certDate = safeCsv(p.certificate_document_date);
-
-                sb.append(String.join(",",
-                        docType,
-                        participantInn,
-                        prodDate,
-                        producerInn,
-                        ownerInn,
-                        productionType,
-                        kit,
-                        kitu,
-                        tnved,
-                        prodDateProduct,
-                        certType,
-                        certNumber,
-                        certDate
-                ));
-                sb.append("\n");
+        ) + "\n").getBytes(StandardCharsets.UTF_8);
+        private static final byte[] EMPTY_PRODUCT = ",,,,,,\n".getBytes(StandardCharsets.UTF_8);
+        private static final int INITIAL_CAPACITY = 8 * 1024;
+        // буфер больше этого не удерживаем в потоке после кодирования крупного документа
+        private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+        private static final ThreadLocal<CsvEncoder> POOL = ThreadLocal.withInitial(CsvEncoder::new);
+
+        private byte[] buf = new byte[INITIAL_CAPACITY];
+        private int pos;
+        private byte[] prefix;
+
+        static byte[] encode(Document d) {
+            CsvEncoder encoder = POOL.get();
+            encoder.pos = 0;
+            try {
+                encoder.writeHead(d);
+                if (d.products == null || d.products.length == 0) {
+                    encoder.writeEmptyRow();
+                } else {
+                    for (Document.Product p : d.products) encoder.writeRow(p);
+                }
+                return Arrays.copyOf(encoder.buf, encoder.pos);
+            } finally {
+                if (encoder.buf.length > MAX_RETAINED_CAPACITY) encoder.buf = new byte[INITIAL_CAPACITY];
+            }
+        }
+
+        /**
+         * Пишет заголовок и один раз кодирует общие для всех строк поля документа.
+         */
+        void writeHead(Document d) {
+            writeBytes(HEADER, 0, HEADER.length);
+
+            int prefixStart = pos;
+            field(d.doc_type);
+            writeByte(',');
+            field(participantInnOf(d));
+            writeByte(',');
+            field(d.production_date);
+            writeByte(',');
+            field(d.producer_inn);
+            writeByte(',');
+            field(d.owner_inn);
+            writeByte(',');
+            field(d.production_type);
+            writeByte(',');
+            prefix = Arrays.copyOfRange(buf, prefixStart, pos);
+            pos = prefixStart;
+        }
+
+        void writeRow(Document.Product p) {
+            writeBytes(prefix, 0, prefix.length);
+            field(p.uit_code);
+            writeByte(',');
+            field(p.uitu_code);
+            writeByte(',');
+            field(p.tnved_code);
+            writeByte(',');
+            field(p.production_date);
+            writeByte(',');
+            field(p.certificate_document);
+            writeByte(',');
+            field(p.certificate_document_number);
+            writeByte(',');
+            field(p.certificate_document_date);
+            writeByte('\n');
+        }
+
+        void writeEmptyRow() {
+            writeBytes(prefix, 0, prefix.length);
+            writeBytes(EMPTY_PRODUCT, 0, EMPTY_PRODUCT.length);
+        }
+
+        void drainTo(OutputStream out) throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        /**
+         * Значение пишется со сдвигом на один байт под открывающую кавычку; если кавычки не понадобились,
+         * записанное сдвигается обратно.
+         */
+        private void field(String v) {
+            if (v == null) return;
+            int start = pos;
+            writeByte('"');
+            boolean needQuotes = false;
+            int len = v.length();
+            for (int i = 0; i < len; i++) {
+                char c = v.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"') {
+                        needQuotes = true;
+                        writeByte('"');
+                    } else if (c == ',' || c == '\n' || c == '\r') {
+                        needQuotes = true;
+                    }
+                    writeByte(c);
+                } else if (c < 0x800) {
+                    ensureCapacity(2);
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(v.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, v.charAt(++i));
+                    ensureCapacity(4);
+                    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // одиночный суррогат, как и String.getBytes, заменяем на '?'
+                    writeByte('?');
+                } else {
+                    ensureCapacity(3);
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            if (needQuotes) {
+                writeByte('"');
+            } else {
+                System.arraycopy(buf, start + 1, buf, start, pos - start - 1);
+                pos--;
+            }
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            buf[pos++] = (byte) b;
+        }
+
+        private void writeBytes(byte[] src, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(src, offset, buf, pos, length);
+            pos += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+    }
+
+    /**
+     * Потоковая запись XML «vvod» в UTF-8: в памяти только буфер фиксированного размера,
+     * теги закодированы заранее, значения без спецсимволов и не-ASCII пишутся напрямую без экранирования.
+     */
+    private static final class XmlEncoder {
+        private static final byte[] PROLOG = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<vvod action_id=\"05\" version=\"5\">\n").getBytes(StandardCharsets.UTF_8);
+        private static final byte[] PRODUCTS_OPEN = ascii("  <products_list>\n");
+        private static final byte[] PRODUCTS_CLOSE = ascii("  </products_list>\n</vvod>\n");
+        private static final byte[] PRODUCT_OPEN = ascii("    <product>\n");
+        private static final byte[] PRODUCT_CLOSE = ascii("    </product>\n");
+
+        private static final Tag TRADE_PARTICIPANT_INN = new Tag("trade_participant_inn", 2);
+        private static final Tag PRODUCER_INN = new Tag("producer_inn", 2);
+        private static final Tag OWNER_INN = new Tag("owner_inn", 2);
+        private static final Tag PRODUCT_DATE = new Tag("product_date", 2);
+        private static final Tag PRODUCTION_ORDER = new Tag("production_order", 2);
+        private static final Tag KIT = new Tag("kit", 6);   // КИ
+        private static final Tag KITU = new Tag("kitu", 6); // КИТУ
+        private static final Tag PRODUCT_PRODUCT_DATE = new Tag("product_date", 6);
+        private static final Tag TNVED_CODE = new Tag("tnved_code", 6);
+        private static final Tag CERTIFICATE_TYPE = new Tag("certificate_type", 6);
+        private static final Tag CERTIFICATE_NUMBER = new Tag("certificate_number", 6);
+        private static final Tag CERTIFICATE_DATE = new Tag("certificate_date", 6);
+
+        private static final int BUFFER_SIZE = 8 * 1024;
+
+        private final OutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos;
+
+        private XmlEncoder(OutputStream out) {
+            this.out = out;
+        }
+
+        static void write(Document d, OutputStream out) throws IOException {
+            XmlEncoder encoder = new XmlEncoder(out);
+            encoder.writeHead(d);
+            if (d.products != null) {
+                for (Document.Product p : d.products) encoder.writeProduct(p);
+            }
+            encoder.writeTail();
+            encoder.flush();
+        }
+
+        void writeHead(Document d) throws IOException {
+            writeBytes(PROLOG);
+            element(TRADE_PARTICIPANT_INN, participantInnOf(d));
+            element(PRODUCER_INN, d.producer_inn);
+            element(OWNER_INN, d.owner_inn);
+            element(PRODUCT_DATE, d.production_date);
+            element(PRODUCTION_ORDER, d.production_type);
+            writeBytes(PRODUCTS_OPEN);
+        }
+
+        void writeProduct(Document.Product p) throws IOException {
+            writeBytes(PRODUCT_OPEN);
+            element(KIT, p.uit_code);
+            element(KITU, p.uitu_code);
+            element(PRODUCT_PRODUCT_DATE, p.production_date);
+            element(TNVED_CODE, p.tnved_code);
+            element(CERTIFICATE_TYPE, p.certificate_document);
+            element(CERTIFICATE_NUMBER, p.certificate_document_number);
+            element(CERTIFICATE_DATE, p.certificate_document_date);
+            writeBytes(PRODUCT_CLOSE);
+        }
+
+        void writeTail() throws IOException {
+            writeBytes(PRODUCTS_CLOSE);
+        }
+
+        void flush() throws IOException {
+            if (pos > 0) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+        }
+
+        private void element(Tag tag, String value) throws IOException {
+            if (value == null) return;
+            writeBytes(tag.open);
+            if (isPlainAscii(value)) {
+                int len = value.length();
+                for (int i = 0; i < len; i++) writeByte(value.charAt(i));
+            } else {
+                writeEscaped(value);
+            }
+            writeBytes(tag.close);
+        }
+
+        private static boolean isPlainAscii(String value) {
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80 || c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') return false;
+            }
+            return true;
+        }
+
+        private void writeEscaped(String value) throws IOException {
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&': writeAscii("&amp;"); break;
+                    case '<': writeAscii("&lt;"); break;
+                    case '>': writeAscii("&gt;"); break;
+                    case '\"': writeAscii("&quot;"); break;
+                    case '\'': writeAscii("&apos;"); break;
+                    default:
+                        if (c < 0x80) {
+                            writeByte(c);
+                        } else if (c < 0x800) {
+                            writeByte(0xC0 | (c >> 6));
+                            writeByte(0x80 | (c & 0x3F));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            int cp = Character.toCodePoint(c, value.charAt(++i));
+                            writeByte(0xF0 | (cp >> 18));
+                            writeByte(0x80 | ((cp >> 12) & 0x3F));
+                            writeByte(0x80 | ((cp >> 6) & 0x3F));
+                            writeByte(0x80 | (cp & 0x3F));
+                        } else if (Character.isSurrogate(c)) {
+                            writeByte('?');
+                        } else {
+                            writeByte(0xE0 | (c >> 12));
+                            writeByte(0x80 | ((c >> 6) & 0x3F));
+                            writeByte(0x80 | (c & 0x3F));
+                        }
+                }
             }
-        } else {
-            sb.append(String.join(",",
-                    docType,
-                    participantInn,
-                    prodDate,
-                    producerInn,
-                    ownerInn,
-                    productionType,
-                    "", "", "", "", "", "", ""
-            ));
-            sb.append("\n");
         }
 
-        return sb.toString();
+        private void writeAscii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) writeByte(s.charAt(i));
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (pos == buf.length) flush();
+            buf[pos++] = (byte) b;
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes.length > buf.length - pos) flush();
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private static byte[] ascii(String s) {
+            return s.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private static final class Tag {
+            final byte[] open;
+            final byte[] close;
+
+            Tag(String name, int indent) {
+                this.open = ascii(" ".repeat(indent) + "<" + name + ">");
+                this.close = ascii("</" + name + ">\n");
+            }
+        }
+    }
+
+    /**
+     * Источник тела запроса по частям: заголовок документа, по одному товару, окончание.
+     */
+    private interface ChunkSource extends AutoCloseable {
+        /**
+         * Дописывает в свой поток следующую часть тела.
+         *
+         * @return false, если тело записано целиком
+         */
+        boolean writeNext() throws IOException;
+
+        /**
+         * Освобождает источник товаров; вызывается и при досрочной отмене подписки.
+         */
+        @Override
+        void close();
+    }
+
+    @FunctionalInterface
+    private interface ChunkSourceFactory {
+        ChunkSource open(OutputStream sink) throws IOException;
     }
 
-    private static String safeCsv(String v) {
-        if (v == null) return "";
-        boolean needQuotes = v.contains(",") || v.contains("\"") || v.contains("\n") || v.contains("\r");
-        String s = v.replace("\"", "\"\"");
-        return needQuotes ? "\"" + s + "\"" : s;
+    private static final class CsvChunkSource implements ChunkSource {
+        private final Document doc;
+        private final OutputStream sink;
+        private final CsvEncoder encoder = new CsvEncoder();
+        private Stream<Document.Product> products;
+        private Iterator<Document.Product> it;
+
+        CsvChunkSource(Document doc, OutputStream sink) {
+            this.doc = doc;
+            this.sink = sink;
+        }
+
+        @Override
+        public boolean writeNext() throws IOException {
+            if (it == null) {
+                products = productsOf(doc);
+                it = products.iterator();
+                encoder.writeHead(doc);
+                if (!it.hasNext()) encoder.writeEmptyRow();
+            } else {
+                encoder.writeRow(it.next());
+            }
+            encoder.drainTo(sink);
+            return it.hasNext();
+        }
+
+        @Override
+        public void close() {
+            if (products != null) products.close();
+        }
+    }
+
+    private static final class XmlChunkSource implements ChunkSource {
+        private final Document doc;
+        private final XmlEncoder encoder;
+        private Stream<Document.Product> products;
+        private Iterator<Document.Product> it;
+
+        XmlChunkSource(Document doc, OutputStream sink) {
+            this.doc = doc;
+            this.encoder = new XmlEncoder(sink);
+        }
+
+        @Override
+        public boolean writeNext() throws IOException {
+            if (it == null) {
+                products = productsOf(doc);
+                it = products.iterator();
+                encoder.writeHead(doc);
+            } else {
+                encoder.writeProduct(it.next());
+            }
+            boolean more = it.hasNext();
+            if (!more) encoder.writeTail();
+            encoder.flush();
+            return more;
+        }
+
+        @Override
+        public void close() {
+            if (products != null) products.close();
+        }
     }
 
-    private String buildXml(Document d) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        sb.append("<vvod action_id=\"05\" version=\"5\">\n");
-        String tradeInn = d.participant_inn != null ? d.participant_inn : (d.description != null ? d.description.participantInn : null);
-        appendTag(sb, "trade_participant_inn", tradeInn);
-        appendTag(sb, "producer_inn", d.producer_inn);
-        appendTag(sb, "owner_inn", d.owner_inn);
+    /**
+     * Поля документа, кроме товаров, сериализуются так же, как при обычной записи (через дерево
+     * mapper из {@link #headMapperOf}, с тем же порядком полей), а массив products пишется по одному элементу.
+     */
+    private static final class JsonChunkSource implements ChunkSource {
+        private final ObjectMapper mapper;
+        private final ObjectWriter productWriter;
+        private final Document doc;
+        private final JsonGenerator gen;
+        private Iterator<Map.Entry<String, JsonNode>> fields;
+        private Stream<Document.Product> products;
+        private Iterator<Document.Product> it;
 
-        if (d.production_date != null) {
-            appendTag(sb, "product_date", d.production_date);
+        JsonChunkSource(ObjectMapper mapper, Document doc, OutputStream sink) throws IOException {
+            this.mapper = mapper;
+            this.productWriter = mapper.writerFor(Document.Product.class);
+            this.doc = doc;
+            // поток тела закрывает подписка: для сжатия close() дописывает окончание gzip/zlib
+            this.gen = mapper.getFactory().createGenerator(sink, JsonEncoding.UTF8)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
         }
 
-        if (d.production_type != null) {
-            appendTag(sb, "production_order", d.production_type);
+        @Override
+        public boolean writeNext() throws IOException {
+            if (fields == null) {
+                ObjectNode head = mapper.valueToTree(doc);
+                fields = head.fields();
+                gen.writeStartObject();
+                if (writeFieldsUntilProducts()) {
+                    gen.flush();
+                    return true;
+                }
+            } else {
+                productWriter.writeValue(gen, it.next());
+                if (it.hasNext()) {
+                    gen.flush();
+                    return true;
+                }
+                gen.writeEndArray();
+                writeFieldsUntilProducts();
+            }
+            gen.writeEndObject();
+            gen.close();
+            return false;
         }
-        sb.append("  <products_list>\n");
-        if (d.products != null) {
-            for (Document.Product p : d.products) {
-                sb.append("    <product>\n");
-                if (p.uit_code != null) appendTagIndented(sb, "kit", p.uit_code, 6);   // КИ
-                if (p.uitu_code != null) appendTagIndented(sb, "kitu", p.uitu_code, 6); // КИТУ
-                if (p.production_date != null) appendTagIndented(sb, "product_date", p.production_date, 6);
-                if (p.tnved_code != null) appendTagIndented(sb, "tnved_code", p.tnved_code, 6);
-                if (p.certificate_document != null) appendTagIndented(sb, "certificate_type", p.certificate_document, 6);
-                if (p.certificate_document_number != null) appendTagIndented(sb, "certificate_number", p.certificate_document_number, 6);
-                if (p.certificate_document_date != null) appendTagIndented(sb, "certificate_date", p.certificate_document_date, 6);
-                sb.append("    </product>\n");
+
+        /**
+         * @return true, если открыт массив products и дальше пойдут товары
+         */
+        private boolean writeFieldsUntilProducts() throws IOException {
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                gen.writeFieldName(field.getKey());
+                if (field.getKey().equals("products") && (doc.products != null || doc.productSource != null)) {
+                    gen.writeStartArray();
+                    products = productsOf(doc);
+                    it = products.iterator();
+                    if (it.hasNext()) return true;
+                    gen.writeEndArray();
+                } else {
+                    mapper.writeTree(gen, field.getValue());
+                }
             }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (products != null) products.close();
         }
-        sb.append("  </products_list>\n");
-        sb.append("</vvod>\n");
-        return sb.toString();
     }
 
-    private static void appendTag(StringBuilder sb, String tag, String value) {
-        if (value == null) return;
-        sb.append("  <").append(tag).append(">");
-        sb.append(escapeXml(value));
-        sb.append("</").append(tag).append(">\n");
+    @FunctionalInterface
+    private interface RequestFactory {
+        HttpRequest create() throws IOException;
     }
 
-    private static void appendTagIndented(StringBuilder sb, String tag, String value, int indentSpaces) {
-        if (value == null) return;
-        for (int i = 0; i < indentSpaces; i++) sb.append(' ');
-        sb.append("<").append(tag).append(">");
-        sb.append(escapeXml(value));
-        sb.append("</").append(tag).append(">\n");
+    @FunctionalInterface
+    private interface ProductSizer {
+        long bytes(Document.Product product) throws IOException;
     }
 
-    private static String escapeXml(String s) {
-        if (s == null) return "";
-        StringBuilder out = new StringBuilder(s.length());
-        for (char c : s.toCharArray()) {
-            switch (c) {
-                case '&': out.append("&amp;"); break;
-                case '<': out.append("&lt;"); break;
-                case '>': out.append("&gt;"); break;
-                case '\"': out.append("&quot;"); break;
-                case '\'': out.append("&apos;"); break;
-                default: out.append(c);
+    /**
+     * Нарезает товары документа на части по числу товаров и по размеру тела. Размер части
+     * считается как размер документа без товаров плюс закодированный размер каждого товара,
+     * поэтому документ кодируется ради нарезки только построчно, а не целиком на каждую пробу.
+     * Товар, который один не влезает в maxBodyBytes, уходит отдельной частью.
+     */
+    private final class DocumentSplitter implements AutoCloseable {
+        private final Document doc;
+        private final int maxProducts;
+        private final long maxBodyBytes;
+        private final Stream<Document.Product> products;
+        private final Iterator<Document.Product> it;
+        private final long headBytes;
+        private final ProductSizer sizer;
+        private Document.Product pending;
+        private long pendingBytes;
+        private int produced;
+
+        DocumentSplitter(Document doc, Format format, int maxProducts, long maxBodyBytes) throws IOException {
+            this.doc = doc;
+            this.maxProducts = maxProducts > 0 ? maxProducts : Integer.MAX_VALUE;
+            this.maxBodyBytes = maxBodyBytes > 0 ? maxBodyBytes : Long.MAX_VALUE;
+            if (maxBodyBytes > 0) {
+                Document empty = withoutProducts(doc);
+                empty.products = new Document.Product[0];
+                this.headBytes = encode(empty, format).length;
+                this.sizer = sizerFor(doc, format);
+            } else {
+                this.headBytes = 0;
+                this.sizer = null;
+            }
+            this.products = productsOf(doc);
+            this.it = products.iterator();
+        }
+
+        boolean hasNext() {
+            // документ без товаров всё равно отправляется одной частью
+            return pending != null || it.hasNext() || produced == 0;
+        }
+
+        Document next() throws IOException {
+            List<Document.Product> part = new ArrayList<>();
+            long bytes = headBytes;
+            while (part.size() < maxProducts && (pending != null || it.hasNext())) {
+                if (pending == null) {
+                    pending = it.next();
+                    pendingBytes = sizer != null ? sizer.bytes(pending) : 0;
+                }
+                if (!part.isEmpty() && bytes + pendingBytes > maxBodyBytes) break;
+                part.add(pending);
+                bytes += pendingBytes;
+                pending = null;
+            }
+
+            Document d = withoutProducts(doc);
+            d.products = part.toArray(new Document.Product[0]);
+            if (doc.doc_id != null) d.doc_id = doc.doc_id + "-" + (produced + 1);
+            produced++;
+            return d;
+        }
+
+        @Override
+        public void close() {
+            products.close();
+        }
+
+        private ProductSizer sizerFor(Document doc, Format format) {
+            switch (format) {
+                case JSON: {
+                    ObjectWriter productWriter = objectMapper.writerFor(Document.Product.class);
+                    return p -> productWriter.writeValueAsBytes(p).length + 1;
+                }
+                case CSV: {
+                    CsvEncoder encoder = new CsvEncoder();
+                    encoder.writeHead(doc);
+                    return p -> {
+                        encoder.pos = 0;
+                        encoder.writeRow(p);
+                        return encoder.pos;
+                    };
+                }
+                case XML: {
+                    ChunkBuffer sink = new ChunkBuffer(1024);
+                    XmlEncoder encoder = new XmlEncoder(sink);
+                    return p -> {
+                        sink.reset();
+                        encoder.writeProduct(p);
+                        encoder.flush();
+                        return sink.size();
+                    };
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported format: " + format);
             }
         }
-        return out.toString();
     }
 
-    private static final class SlidingWindowRateLimiter {
-        private final int limit;
-        private final long windowMillis;
-        private final Deque<Long> timestamps;
-        private final ReentrantLock lock;
-        private final Condition notFull;
+    /**
+     * Отправка частей документа с ограниченным числом одновременно отправляемых частей.
+     * Следующую часть нарезает тот поток, на котором завершилась предыдущая; за нарезку
+     * в каждый момент отвечает один поток, как в {@link StreamingBodyPublisher}.
+     */
+    private final class SplitSubmission {
+        static final int MAX_PARALLEL_PARTS = 32;
 
-        SlidingWindowRateLimiter(int limit, long windowMillis) {
-            this.limit = limit;
-            this.windowMillis = windowMillis;
-            this.timestamps = new ArrayDeque<>(limit + 2);
-            this.lock = new ReentrantLock(true);
-            this.notFull = lock.newCondition();
+        private final DocumentSplitter splitter;
+        private final Format format;
+        private final Function<byte[], String> signer;
+        private final Priority priority;
+        private final int parallelism;
+        private final List<Document> parts = new ArrayList<>();
+        private final List<HttpResponse<String>> responses = new ArrayList<>();
+        private final List<Throwable> failures = new ArrayList<>();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final CompletableFuture<SplitResult> result = new CompletableFuture<>();
+        // не synchronized: nextPart читает ленивый источник вызывающего (например, JDBC), и на
+        // виртуальном потоке JDK до 24 монитор закрепил бы поток-носитель на всё время чтения
+        private final ReentrantLock lock = new ReentrantLock();
+        private int inFlight;
+        private boolean exhausted;
+        private Throwable splitFailure;
+
+        SplitSubmission(DocumentSplitter splitter, Format format, Function<byte[], String> signer,
+                        Priority priority, int parallelism) {
+            this.splitter = splitter;
+            this.format = format;
+            this.signer = signer;
+            this.priority = priority;
+            this.parallelism = parallelism;
+        }
+
+        void pump() {
+            if (wip.getAndIncrement() != 0) return;
+            do {
+                Document part;
+                while ((part = nextPart()) != null) {
+                    int index = parts.size() - 1;
+                    Document p = part;
+                    submitAsync(p, () -> {
+                        byte[] body = encode(p, format);
+                        return buildRequest(format, body, signer.apply(body));
+                    }, priority).whenComplete((response, failure) -> onPartDone(index, response, failure));
+                }
+                completeIfDone();
+            } while (wip.decrementAndGet() != 0);
         }
 
-        void acquire() throws InterruptedException {
+        private Document nextPart() {
             lock.lock();
             try {
-                while (true) {
-                    long now = nowMillis();
-                    purgeOld(now);
-                    if (timestamps.size() < limit) {
-                        timestamps.addLast(now);
-                        notFull.signalAll();
-                        return;
-                    } else {
-                        long oldest = timestamps.peekFirst();
-                        long waitUntil = oldest + windowMillis;
-                        long waitMs = waitUntil - now;
-                        if (waitMs <= 0) {
-                            // старые записи уже вышли — повторим проверку
-                            purgeOld(now);
-                            continue;
-                        }
-                        notFull.awaitNanos(TimeUnit.MILLISECONDS.toNanos(waitMs));
+                if (exhausted || inFlight >= parallelism) return null;
+                try {
+                    // после закрытия клиента оставшиеся товары уже не читаются
+                    if (closed) throw closedException();
+                    if (splitter.hasNext()) {
+                        Document part = splitter.next();
+                        parts.add(part);
+                        responses.add(null);
+                        failures.add(null);
+                        inFlight++;
+                        return part;
                     }
+                } catch (IOException | RuntimeException e) {
+                    splitFailure = e;
                 }
+                exhausted = true;
+                splitter.close();
+                return null;
             } finally {
                 lock.unlock();
             }
         }
 
-        private void purgeOld(long nowMillis) {
-            long threshold = nowMillis - windowMillis;
-            while (!timestamps.isEmpty() && timestamps.peekFirst() <= threshold) {
-                timestamps.removeFirst();
+        private void onPartDone(int index, HttpResponse<String> response, Throwable failure) {
+            lock.lock();
+            try {
+                if (failure != null) {
+                    failures.set(index, failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure);
+                } else {
+                    responses.set(index, response);
+                }
+                inFlight--;
+            } finally {
+                lock.unlock();
+            }
+            pump();
+        }
+
+        private void completeIfDone() {
+            lock.lock();
+            try {
+                if (!exhausted || inFlight > 0 || result.isDone()) return;
+                if (splitFailure != null && parts.isEmpty()) {
+                    result.completeExceptionally(splitFailure);
+                } else {
+                    result.complete(new SplitResult(parts, responses, failures, splitFailure));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * BodyPublisher, который кодирует очередную порцию тела только в ответ на request(n) подписчика.
+     * Каждая подписка (HttpClient может подписаться повторно, например при повторе запроса)
+     * кодирует документ заново.
+     */
+    private static final class StreamingBodyPublisher implements HttpRequest.BodyPublisher {
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final ChunkSourceFactory sources;
+        private final Compression compression;
+
+        StreamingBodyPublisher(ChunkSourceFactory sources, Compression compression) {
+            this.sources = sources;
+            this.compression = compression;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new ChunkSubscription(subscriber));
+        }
+
+        private final class ChunkSubscription implements Flow.Subscription {
+            private final Flow.Subscriber<? super ByteBuffer> subscriber;
+            private final ChunkBuffer chunk = new ChunkBuffer(CHUNK_SIZE);
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+            private volatile boolean cancelled;
+            private ChunkSource source;
+            private DeflatingOutputStream deflating;
+            private boolean exhausted;
+            private boolean done;
+
+            ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                    return;
+                }
+                demand.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+
+            // onNext может синхронно вызвать request(), поэтому кодированием занимается только один поток
+            private void drain() {
+                if (wip.getAndIncrement() != 0) return;
+                do {
+                    while (!done && !cancelled && demand.get() > 0) {
+                        ByteBuffer next;
+                        try {
+                            next = nextChunk();
+                        } catch (IOException | RuntimeException e) {
+                            done = true;
+                            closeSource();
+                            subscriber.onError(e);
+                            break;
+                        }
+                        if (next == null) {
+                            done = true;
+                            closeSource();
+                            subscriber.onComplete();
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(next);
+                    }
+                    if (cancelled) closeSource();
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            private void closeSource() {
+                if (source != null) {
+                    source.close();
+                    source = null;
+                    exhausted = true;
+                }
+                if (deflating != null) {
+                    deflating.abort();
+                    deflating = null;
+                }
+            }
+
+            private ByteBuffer nextChunk() throws IOException {
+                chunk.reset();
+                if (source == null && !exhausted) {
+                    if (compression != Compression.NONE) deflating = new DeflatingOutputStream(chunk, compression);
+                    source = sources.open(deflating != null ? deflating : chunk);
+                }
+                // deflater копит вход внутри себя, поэтому несколько товаров могут не дать ни байта
+                while (!exhausted && chunk.size() < CHUNK_SIZE) {
+                    exhausted = !source.writeNext();
+                    if (exhausted && deflating != null) deflating.finish();
+                }
+                return chunk.size() == 0 ? null : chunk.toByteBuffer();
+            }
+        }
+    }
+
+    /**
+     * Сжатие в формате gzip или zlib на Deflater'е из пула {@link Compression}. В отличие от
+     * GZIPOutputStream не создаёт свой Deflater, а flush() не сбрасывает блок, чтобы частые
+     * сбросы потокового тела после каждого товара не портили степень сжатия.
+     */
+    private static final class DeflatingOutputStream extends OutputStream {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final OutputStream out;
+        private final Compression compression;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf = new byte[8 * 1024];
+        private Deflater deflater;
+
+        DeflatingOutputStream(OutputStream out, Compression compression) throws IOException {
+            this.out = out;
+            this.compression = compression;
+            this.deflater = compression.borrow();
+            if (compression.gzip) out.write(GZIP_HEADER);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            if (compression.gzip) crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) deflate();
+        }
+
+        /**
+         * Дописывает сжатый поток до конца и возвращает Deflater в пул. Повторный вызов ничего не делает.
+         */
+        void finish() throws IOException {
+            if (deflater == null) return;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) deflate();
+                if (compression.gzip) {
+                    writeIntLE((int) crc.getValue());
+                    writeIntLE((int) deflater.getBytesRead());
+                }
+            } finally {
+                abort();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        /**
+         * Возвращает Deflater в пул, не дописывая поток: для отменённой или упавшей отправки.
+         */
+        void abort() {
+            if (deflater != null) {
+                compression.release(deflater);
+                deflater = null;
             }
         }
 
-        private long nowMillis() {
-            return Instant.now().toEpochMilli();
+        private void deflate() throws IOException {
+            int n = deflater.deflate(buf, 0, buf.length);
+            if (n > 0) out.write(buf, 0, n);
+        }
+
+        private void writeIntLE(int v) throws IOException {
+            out.write(v);
+            out.write(v >>> 8);
+            out.write(v >>> 16);
+            out.write(v >>> 24);
+        }
+    }
+
+    /**
+     * Несинхронизированный аналог ByteArrayOutputStream для порций потокового тела.
+     */
+    private static final class ChunkBuffer extends OutputStream {
+        private byte[] buf;
+        private int count;
+
+        ChunkBuffer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(Arrays.copyOf(buf, count));
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
         }
     }
 
@@ -319,6 +4156,44 @@ public class CrptApi implements AutoCloseable {
         public String reg_date; // YYYY-MM-DDTHH:mm:ss
         public String reg_number;
 
+        private Supplier<? extends Stream<Product>> productSource;
+        private boolean productSourceOnce;
+
+        /**
+         * Товары берутся из потока во время отправки вместо массива {@link #products}, поэтому
+         * документ всегда уходит потоковым телом и не держит все КИ в памяти. Поток закрывается
+         * после отправки (или при её отмене), так что его можно строить поверх курсора JDBC или файла.
+         * Поток читается один раз: повторная отправка такого документа невозможна.
+         */
+        public Document productsFrom(Stream<Product> products) {
+            Objects.requireNonNull(products, "products");
+            AtomicBoolean consumed = new AtomicBoolean();
+            productSource = () -> {
+                if (consumed.getAndSet(true)) throw new IllegalStateException("product stream has already been consumed");
+                return products;
+            };
+            productSourceOnce = true;
+            return this;
+        }
+
+        public Document productsFrom(Iterator<Product> products) {
+            return productsFrom(Spliterators.spliteratorUnknownSize(products, Spliterator.ORDERED));
+        }
+
+        public Document productsFrom(Spliterator<Product> products) {
+            return productsFrom(StreamSupport.stream(products, false));
+        }
+
+        /**
+         * Как {@link #productsFrom(Stream)}, но поток строится заново при каждой отправке тела,
+         * поэтому документ можно отправлять повторно.
+         */
+        public Document productsFrom(Supplier<? extends Stream<Product>> products) {
+            this.productSource = Objects.requireNonNull(products, "products");
+            this.productSourceOnce = false;
+            return this;
+        }
+
         public static class Description {
             public String participantInn;
         }
@@ -0,0 +1,227 @@
+package ru.valkonsky;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Лимиты проверяются на {@link CrptApi.ManualNanoClock}, документы отправляются на локальный сервер,
+ * который запоминает тела запросов.
+ */
+class CrptApiTest {
+    private static final CrptApi.LimiterType[] WINDOW_LIMITERS = {
+            CrptApi.LimiterType.SLIDING_WINDOW, CrptApi.LimiterType.BUCKETED_WINDOW};
+
+    private final List<byte[]> bodies = new CopyOnWriteArrayList<>();
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private URI uri;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            bodies.add(exchange.getRequestBody().readAllBytes());
+            byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void windowLimitersAllowLimitPerWindow() throws Exception {
+        for (CrptApi.LimiterType type : WINDOW_LIMITERS) {
+            CrptApi.ManualNanoClock clock = new CrptApi.ManualNanoClock();
+            try (CrptApi api = client(type, clock, TimeUnit.MINUTES, 3)) {
+                for (int i = 0; i < 3; i++) assertTrue(trySend(api), type + ": permit " + i);
+                assertFalse(trySend(api), type + ": over limit");
+
+                clock.advance(59, TimeUnit.SECONDS);
+                assertFalse(trySend(api), type + ": window has not passed");
+
+                // бакетное окно может ждать лишнее подокно: 6 с при 10 подокнах
+                clock.advance(type == CrptApi.LimiterType.BUCKETED_WINDOW ? 7 : 1, TimeUnit.SECONDS);
+                assertTrue(trySend(api), type + ": next window");
+            }
+        }
+    }
+
+    @Test
+    void gcraSpacesPermitsWithoutBurst() throws Exception {
+        CrptApi.ManualNanoClock clock = new CrptApi.ManualNanoClock();
+        try (CrptApi api = client(CrptApi.LimiterType.GCRA, clock, TimeUnit.MINUTES, 3)) {
+            assertTrue(trySend(api));
+            assertFalse(trySend(api));
+
+            clock.advance(19, TimeUnit.SECONDS);
+            assertFalse(trySend(api));
+
+            clock.advance(1, TimeUnit.SECONDS);
+            assertTrue(trySend(api));
+        }
+    }
+
+    @Test
+    void gcraNeverExceedsLimitInAnyWindow() throws Exception {
+        CrptApi.ManualNanoClock clock = new CrptApi.ManualNanoClock();
+        List<Long> grantedAt = new ArrayList<>();
+        try (CrptApi api = client(CrptApi.LimiterType.GCRA, clock, TimeUnit.MINUTES, 10)) {
+            // простой перед началом: всплеска после него быть не должно
+            clock.advance(1, TimeUnit.HOURS);
+            for (int second = 0; second < 300; second++) {
+                while (trySend(api)) grantedAt.add(clock.nanoTime());
+                clock.advance(1, TimeUnit.SECONDS);
+            }
+        }
+        long window = TimeUnit.MINUTES.toNanos(1);
+        for (int i = 0; i < grantedAt.size(); i++) {
+            int inWindow = 0;
+            for (int j = i; j < grantedAt.size() && grantedAt.get(j) - grantedAt.get(i) < window; j++) inWindow++;
+            assertTrue(inWindow <= 10, "permits in a window: " + inWindow);
+        }
+        assertEquals(50, grantedAt.size());
+    }
+
+    @Test
+    void blockedSendWakesWhenClockAdvances() throws Exception {
+        CrptApi.ManualNanoClock clock = new CrptApi.ManualNanoClock();
+        try (CrptApi api = client(CrptApi.LimiterType.SLIDING_WINDOW, clock, TimeUnit.HOURS, 1)) {
+            api.createEntryDocument(document(3), CrptApi.Format.JSON, "sig");
+            CompletableFuture<HttpResponse<String>> blocked = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return api.createEntryDocument(document(3), CrptApi.Format.JSON, "sig");
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            assertThrows(TimeoutException.class, () -> blocked.get(200, TimeUnit.MILLISECONDS));
+
+            clock.advance(1, TimeUnit.HOURS);
+            assertEquals(200, blocked.get(5, TimeUnit.SECONDS).statusCode());
+        }
+    }
+
+    @Test
+    void asyncSendCompletesWhenClockAdvances() throws Exception {
+        CrptApi.ManualNanoClock clock = new CrptApi.ManualNanoClock();
+        try (CrptApi api = client(CrptApi.LimiterType.GCRA, clock, TimeUnit.HOURS, 1)) {
+            api.createEntryDocumentAsync(document(3), CrptApi.Format.JSON, "sig").get(5, TimeUnit.SECONDS);
+            CompletableFuture<HttpResponse<String>> waiting = api.createEntryDocumentAsync(document(3), CrptApi.Format.JSON, "sig");
+            assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+
+            clock.advance(1, TimeUnit.HOURS);
+            assertEquals(200, waiting.get(5, TimeUnit.SECONDS).statusCode());
+        }
+    }
+
+    @Test
+    void streamedBodyEqualsBufferedBody() throws Exception {
+        try (CrptApi api = client(CrptApi.LimiterType.SLIDING_WINDOW, CrptApi.NanoClock.SYSTEM, TimeUnit.SECONDS, 1000)) {
+            for (CrptApi.Format format : CrptApi.Format.values()) {
+                for (int products : new int[]{0, 1, 500}) {
+                    CrptApi.Document doc = document(products);
+                    byte[] buffered = send(api, doc, format, Integer.MAX_VALUE);
+                    assertArrayEquals(buffered, send(api, doc, format, 0), format + ", products: " + products);
+
+                    CrptApi.Document lazy = document(0);
+                    lazy.products = null;
+                    CrptApi.Document.Product[] source = doc.products;
+                    lazy.productsFrom(() -> Arrays.stream(source));
+                    assertArrayEquals(buffered, send(api, lazy, format, Integer.MAX_VALUE),
+                            format + ", lazy products: " + products);
+                }
+            }
+        }
+    }
+
+    @Test
+    void streamedJsonKeepsSubclassFields() throws Exception {
+        try (CrptApi api = client(CrptApi.LimiterType.SLIDING_WINDOW, CrptApi.NanoClock.SYSTEM, TimeUnit.SECONDS, 1000)) {
+            ExtendedDocument doc = new ExtendedDocument();
+            doc.doc_id = "ext";
+            doc.products = document(20).products;
+            byte[] buffered = send(api, doc, CrptApi.Format.JSON, Integer.MAX_VALUE);
+            assertTrue(new String(buffered, StandardCharsets.UTF_8).contains("\"extra\":\"value\""));
+            assertArrayEquals(buffered, send(api, doc, CrptApi.Format.JSON, 0));
+        }
+    }
+
+    public static class ExtendedDocument extends CrptApi.Document {
+        public String extra = "value";
+    }
+
+    private CrptApi client(CrptApi.LimiterType type, CrptApi.NanoClock clock, TimeUnit unit, int limit) {
+        return CrptApi.builder()
+                .rateLimit(unit, limit)
+                .limiterType(type)
+                .clock(clock)
+                .baseUri(uri)
+                .version(HttpClient.Version.HTTP_1_1)
+                .build();
+    }
+
+    private boolean trySend(CrptApi api) throws IOException, InterruptedException {
+        return api.tryCreateEntryDocument(document(1), CrptApi.Format.JSON, "sig").isPresent();
+    }
+
+    private byte[] send(CrptApi api, CrptApi.Document doc, CrptApi.Format format, int streamingThreshold)
+            throws IOException, InterruptedException {
+        api.setStreamingThreshold(streamingThreshold);
+        bodies.clear();
+        api.createEntryDocument(doc, format, "sig");
+        assertEquals(1, bodies.size());
+        return bodies.get(0);
+    }
+
+    private static CrptApi.Document document(int products) {
+        CrptApi.Document doc = new CrptApi.Document();
+        doc.doc_id = "doc";
+        doc.doc_type = "LP_INTRODUCE_GOODS";
+        doc.owner_inn = "7701234567";
+        doc.production_date = "2024-01-31";
+        doc.products = new CrptApi.Document.Product[products];
+        for (int i = 0; i < products; i++) {
+            CrptApi.Document.Product product = new CrptApi.Document.Product();
+            // символы, которые экранируются в каждом формате
+            product.uit_code = "0104600000000" + i + (i % 7 == 0 ? "\",<>&\nж" : "");
+            product.tnved_code = "6401" + i;
+            doc.products[i] = product;
+        }
+        return doc;
+    }
+}